@@ -20,104 +20,624 @@
  */
 
 #include <stdio.h>
+#include <stdlib.h>
 #include <string.h>
 #include <unistd.h>
+#include <pthread.h>
 #include <fcntl.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <openssl/sha.h>
 #include "xdelta3-3.0.7/xdelta3.h"
 #include "delta.h"
+#include "unsigned_view.h"
+
+#define CHUNK (256 * 1024)
+
+struct source_block {
+	xoff_t blkno;
+	usize_t onblk;
+	uint64_t used;
+	unsigned char* data;
+};
+
+struct dedelta_state {
+	int fsource;
+	int fout;
+	off_t out_offset;
+	char* filenameOut;
+	progress_t* progress;
+	int hash;
+	SHA256_CTX sha;
+	off_t source_size;
+	int source_unsigned;
+	unsigned char* map;
+	off_t map_size;
+	struct source_block* blocks;
+	int blocks_used;
+	int blocks_max;
+	uint64_t tick;
+	xd3_stream stream;
+	xd3_config config;
+	xd3_source source;
+};
+
+/* read fallback: how many source blocks to keep around, see
+ * dedelta_set_cache_blocks */
+static int cache_blocks = 1;
+
+/* cumulative source block requests served from the block cache, read from
+ * disk, and served from a mapping */
+static int64_t stat_hits = 0;
+static int64_t stat_misses = 0;
+static int64_t stat_mapped = 0;
+
+void dedelta_set_cache_blocks(int blocks) {
+	cache_blocks = (blocks > 0) ? blocks : 1;
+}
+
+void dedelta_get_cache_stats(int64_t* hits, int64_t* misses, int64_t* mapped) {
+	*hits = __atomic_load_n(&stat_hits, __ATOMIC_RELAXED);
+	*misses = __atomic_load_n(&stat_misses, __ATOMIC_RELAXED);
+	*mapped = __atomic_load_n(&stat_mapped, __ATOMIC_RELAXED);
+}
 
 static int xerror(char* message) {
 	fprintf(stderr, "%s\n", message);
 	return 0;
 }
 
-int dedelta(char* filenameSource, char* filenameDelta, char* filenameOut) {
-	int ok = 0;
+static void dedelta_free(struct dedelta_state* state) {
+	if (state->fsource >= 0) close(state->fsource);
+	if (state->fout >= 0) close(state->fout);
+	if (state->blocks != NULL) {
+		int i;
+		for (i = 0; i < state->blocks_used; i++) free(state->blocks[i].data);
+		free(state->blocks);
+	}
+	if (state->map != NULL) munmap(state->map, state->map_size);
+	if (state->filenameOut != NULL) free(state->filenameOut);
+	free(state);
+}
 
-	int fsource = open(filenameSource, O_RDONLY);
-	int fdelta = open(filenameDelta, O_RDONLY);
+/* set up decoding into fout from offset on, fout is closed with the state
+ * (or right away on failure). Keeps at most blocks source blocks around */
+static struct dedelta_state* dedelta_start(char* filenameSource, int64_t unsignedSize, int fout, off_t offset, progress_t* progress, int hash, int blocks) {
+	struct dedelta_state* state = (struct dedelta_state*)calloc(1, sizeof(struct dedelta_state));
+	if (state == NULL) {
+		close(fout);
+		xerror("Malloc failed");
+		return NULL;
+	}
+
+	state->fsource = open(filenameSource, O_RDONLY);
+	state->fout = fout;
+	state->out_offset = offset;
+	state->progress = progress;
+	state->hash = hash;
+	if (hash) SHA256_Init(&state->sha);
+
+	if (state->fsource < 0) {
+		dedelta_free(state);
+		return NULL;
+	}
+
+	struct stat st;
+	if (fstat(state->fsource, &st) != 0) st.st_size = 0;
+	state->source_size = st.st_size;
+	if (unsignedSize >= 0) {
+		if (!unsigned_view_check(state->fsource, st.st_size, unsignedSize)) {
+			xerror("Source is not a signed store ZIP");
+			dedelta_free(state);
+			return NULL;
+		}
+		state->source_size = unsignedSize;
+		state->source_unsigned = 1;
+	}
+
+	/* Map the source so blocks are served straight from the page cache
+	 * instead of being copied into a buffer on every request. This may fail
+	 * on filesystems without mmap support, or for a large source on a
+	 * 32-bit process, in which case we read blocks into an LRU block cache
+	 * instead, as xdelta3 revisits recent blocks a lot. An unsigned view is
+	 * mapped privately, so patching it only copies the page it is on */
+	if (state->source_size > 0) {
+		void* map;
+		if (state->source_unsigned) {
+			map = mmap(NULL, state->source_size, PROT_READ | PROT_WRITE, MAP_PRIVATE, state->fsource, 0);
+		} else {
+			map = mmap(NULL, state->source_size, PROT_READ, MAP_SHARED, state->fsource, 0);
+		}
+		if (map != MAP_FAILED) {
+			state->map = (unsigned char*)map;
+			state->map_size = state->source_size;
+			if (state->source_unsigned) unsigned_view_patch(state->map, 0, state->map_size, state->source_size);
+		}
+	}
+	if (state->map == NULL) {
+		/* no point keeping more blocks than the source has */
+		xoff_t source_blocks = ((xoff_t)state->source_size + CHUNK - 1) / CHUNK;
+		state->blocks_max = (blocks < source_blocks) ? blocks : (int)source_blocks;
+		if (state->blocks_max < 1) state->blocks_max = 1;
+		state->blocks = (struct source_block*)calloc(state->blocks_max, sizeof(struct source_block));
+		if (state->blocks != NULL) {
+			state->blocks[0].data = (unsigned char*)malloc(CHUNK);
+			state->blocks[0].blkno = (xoff_t) -1;
+			if (state->blocks[0].data != NULL) state->blocks_used = 1;
+		}
+	}
+
+	if ((state->map == NULL) && (state->blocks_used == 0)) {
+		xerror("Malloc failed");
+		dedelta_free(state);
+		return NULL;
+	}
+
+	xd3_init_config (&state->config, 0 /* flags */);
+	state->config.winsize = 32768;
+	if (xd3_config_stream (&state->stream, &state->config) != 0) {
+		xerror("Error #1");
+		dedelta_free(state);
+		return NULL;
+	}
+
+	state->source.name = filenameSource;
+	state->source.ioh = NULL;
+	state->source.blksize = CHUNK;
+	state->source.curblkno = (xoff_t) -1;
+	state->source.curblk = (state->map != NULL) ? state->map : state->blocks[0].data;
+	state->source.max_winsize = CHUNK;
+
+	if (xd3_set_source (&state->stream, &state->source) != 0) {
+		xerror("Error #2");
+		xd3_free_stream(&state->stream);
+		dedelta_free(state);
+		return NULL;
+	}
+
+	return state;
+}
+
+struct dedelta_state* dedelta_open(char* filenameSource, int64_t unsignedSize, char* filenameOut, progress_t* progress, int hash) {
 	unlink(filenameOut);
 	int fout = open(filenameOut, O_CREAT | O_WRONLY, 0644);
+	char* name = strdup(filenameOut);
+
+	struct dedelta_state* state = NULL;
+	if ((fout >= 0) && (name != NULL)) {
+		state = dedelta_start(filenameSource, unsignedSize, fout, 0, progress, hash, cache_blocks);
+	} else if (fout >= 0) {
+		close(fout);
+	}
+	if (state == NULL) {
+		free(name);
+		unlink(filenameOut);
+		return NULL;
+	}
+	state->filenameOut = name;
+	return state;
+}
+
+/* read fallback: find blkno in the block cache, or read it into the least
+ * recently used slot */
+static struct source_block* dedelta_get_block(struct dedelta_state* state, xoff_t blkno) {
+	struct source_block* block = NULL;
+	int i;
+
+	state->tick++;
+	for (i = 0; i < state->blocks_used; i++) {
+		if (state->blocks[i].blkno == blkno) {
+			__atomic_fetch_add(&stat_hits, 1, __ATOMIC_RELAXED);
+			state->blocks[i].used = state->tick;
+			return &state->blocks[i];
+		}
+	}
+	__atomic_fetch_add(&stat_misses, 1, __ATOMIC_RELAXED);
+
+	if (state->blocks_used < state->blocks_max) {
+		/* grow the cache as blocks are needed, rather than all up front */
+		unsigned char* data = (unsigned char*)malloc(CHUNK);
+		if (data != NULL) {
+			block = &state->blocks[state->blocks_used++];
+			block->data = data;
+		}
+	}
+	if (block == NULL) {
+		block = &state->blocks[0];
+		for (i = 1; i < state->blocks_used; i++) {
+			if (state->blocks[i].used < block->used) block = &state->blocks[i];
+		}
+	}
+
+	block->blkno = (xoff_t) -1;
+	if (lseek(state->fsource, (off_t)CHUNK * blkno, SEEK_SET) == (off_t)-1) {
+		xerror("Seek error");
+		return NULL;
+	}
+	ssize_t r = read(state->fsource, block->data, CHUNK);
+	if (state->source_unsigned) {
+		/* stop at the end of the view, and patch it */
+		off_t offset = (off_t)CHUNK * blkno;
+		off_t left = (offset < state->source_size) ? state->source_size - offset : 0;
+		if (r > left) r = left;
+		if (r > 0) unsigned_view_patch(block->data, offset, r, state->source_size);
+	}
+	block->onblk = (r > 0) ? r : 0;
+	block->blkno = blkno;
+	block->used = state->tick;
+	return block;
+}
+
+/* run the decoder until it has consumed all available input */
+static int dedelta_process(struct dedelta_state* state) {
+	xd3_stream* stream = &state->stream;
+	xd3_source* source = &state->source;
 
-	if ((fsource >= 0) && (fdelta >= 0) && (fout >= 0)) {
-		int CHUNK = 256 * 1024;
-		unsigned char* bsource = (unsigned char*)malloc(CHUNK);
-		if (bsource == NULL) return xerror("Malloc failed");
+	while (1) {
+		int ret = xd3_decode_input (stream);
+		switch (ret) {
+		case XD3_INPUT:
+			return 1;
+		case XD3_OUTPUT:
+			if (progress_cancelled(state->progress)) return xerror("Cancelled");
+			/* write data */
+			if (stream->avail_out > 0) {
+				if (pwrite(state->fout, stream->next_out, stream->avail_out, state->out_offset) != stream->avail_out) return xerror("Write error");
+				state->out_offset += stream->avail_out;
+			}
+			if (state->hash) SHA256_Update(&state->sha, stream->next_out, stream->avail_out);
+			progress_add(state->progress, 0, stream->avail_out);
+			xd3_consume_output(stream);
+			break;
+		case XD3_GETSRCBLK:
+			/* set source block */
+			if (state->map != NULL) {
+				off_t offset = (off_t)source->blksize * source->getblkno;
+				off_t left = (offset < state->map_size) ? state->map_size - offset : 0;
+				source->curblk = state->map + ((left > 0) ? offset : 0);
+				source->onblk = (left < source->blksize) ? left : source->blksize;
+				/* copies tend to continue into the next block, start reading
+				 * it in while this one is being used */
+				if (left > source->blksize) madvise(state->map + offset + source->blksize, ((left - source->blksize) < source->blksize) ? (left - source->blksize) : source->blksize, MADV_WILLNEED);
+				__atomic_fetch_add(&stat_mapped, 1, __ATOMIC_RELAXED);
+			} else {
+				struct source_block* block = dedelta_get_block(state, source->getblkno);
+				if (block == NULL) return 0;
+				source->curblk = block->data;
+				source->onblk = block->onblk;
+			}
+			source->curblkno = source->getblkno;
+			break;
+		case XD3_GOTHEADER:
+		case XD3_WINSTART:
+		case XD3_WINFINISH:
+			/* no action necessary */
+			break;
+		default:
+			/* error */
+			return xerror("Error #3");
+		}
+	}
+}
+
+int dedelta_feed(struct dedelta_state* state, unsigned char* data, int length) {
+	if (length <= 0) return 1;
+	xd3_avail_input (&state->stream, data, length);
+	if (!dedelta_process(state)) return 0;
+	progress_add(state->progress, length, 0);
+	return 1;
+}
+
+/* as dedelta_close, end receives the offset the output ended at */
+static int dedelta_end(struct dedelta_state* state, int finish, unsigned char* sha256, off_t* end) {
+	int ok = 0;
+	unsigned char empty = 0;
+
+	if (finish) {
+		xd3_set_flags (&state->stream, XD3_FLUSH);
+		xd3_avail_input (&state->stream, &empty, 0);
+		ok = dedelta_process(state);
+	}
+
+	xd3_close_stream(&state->stream);
+	xd3_free_stream(&state->stream);
+
+	if (close(state->fout) != 0) ok = 0;
+	state->fout = -1;
+	if (!ok && (state->filenameOut != NULL)) unlink(state->filenameOut);
+	if (ok && state->hash && (sha256 != NULL)) SHA256_Final(sha256, &state->sha);
+	if (end != NULL) *end = state->out_offset;
+
+	dedelta_free(state);
+	return ok;
+}
+
+int dedelta_close(struct dedelta_state* state, int finish, unsigned char* sha256) {
+	return dedelta_end(state, finish, sha256, NULL);
+}
+
+int dedelta(char* filenameSource, int64_t unsignedSize, char* filenameDelta, char* filenameOut, progress_t* progress, unsigned char* sha256) {
+	int ok = 0;
+
+	int fdelta = open(filenameDelta, O_RDONLY);
+	if (fdelta < 0) {
+		unlink(filenameOut);
+		return 0;
+	}
+
+	struct dedelta_state* state = dedelta_open(filenameSource, unsignedSize, filenameOut, progress, sha256 != NULL);
+	if (state != NULL) {
 		unsigned char* bdelta = (unsigned char*)malloc(CHUNK);
-		if (bdelta == NULL) return xerror("Malloc failed");
+		if (bdelta == NULL) xerror("Malloc failed");
 
-		int ret;
-		xd3_stream stream;
-		xd3_config config;
+		ok = (bdelta != NULL);
+		while (ok) {
+			ssize_t r = read(fdelta, bdelta, CHUNK);
+			if (r <= 0) break;
+			ok = dedelta_feed(state, bdelta, r);
+		}
 
-		xd3_init_config (&config, 0 /* flags */);
-		config.winsize = 32768;
-		ret = xd3_config_stream (&stream, &config);
+		ok = dedelta_close(state, ok, sha256);
+		if (bdelta != NULL) free(bdelta);
+	}
 
-		if (ret != 0) return xerror("Error #1");
+	close(fdelta);
 
-		xd3_source source;
+	return ok;
+}
 
-		source.name = filenameSource;
-		source.ioh = NULL;
-		source.blksize = CHUNK;
-		source.curblkno = (xoff_t) -1;
-		source.curblk = bsource;
-		source.max_winsize = CHUNK;
+/* segmented deltas, see delta.h for the layout */
 
-		ret = xd3_set_source (&stream, &source);
+#define SEGMENTS_MAGIC "ODSEGS01"
+#define SEGMENTS_HEADER_SIZE 16
+#define SEGMENTS_ENTRY_SIZE 16
+#define SEGMENTS_MAX (1 << 20)
 
-		if (ret != 0) return xerror("Error #2");
+struct segment {
+	off_t target_offset;
+	off_t target_size;
+	off_t delta_offset;
+	off_t delta_size;
+	int done;
+};
 
-		int eof = 0;
-		do {
-			size_t r = read(fdelta, bdelta, CHUNK);
-			if (r <= 0) {
-				eof = 1;
-				xd3_set_flags (&stream, XD3_FLUSH);
-			}
-			xd3_avail_input (&stream, bdelta, r);
-		process:
-			ret = xd3_decode_input (&stream);
-			switch (ret) {
-			case XD3_INPUT:
-				continue;
-			case XD3_OUTPUT:
-				/* write data */
-				if (stream.avail_out > 0) if (write(fout, stream.next_out, stream.avail_out) != stream.avail_out) return xerror("Write error");
-				xd3_consume_output(&stream);
-				goto process;
-			case XD3_GETSRCBLK:
-				/* set source block */
-				if (lseek(fsource, source.blksize * source.getblkno, SEEK_SET) == (off_t)-1) return xerror("Seek error");
-				source.onblk = read(fsource, bsource, source.blksize);
-				source.curblkno = source.getblkno;
-				goto process;
-			case XD3_GOTHEADER:
-			case XD3_WINSTART:
-			case XD3_WINFINISH:
-				/* no action necessary */
-				goto process;
-			default:
-				/* error */
-				return xerror("Error #3");
-			}
-		} while (!eof);
+struct segment_job {
+	char* filenameSource;
+	int64_t unsignedSize;
+	int fsegments;
+	int fout;
+	int blocks;
+	struct segment* segments;
+	int count;
+	int next;
+	int failed;
+	progress_t* progress;
+	pthread_mutex_t lock;
+	pthread_cond_t cond;
+};
 
-		free(bsource);
-		free(bdelta);
+static uint64_t segments_le64(unsigned char* p) {
+	uint64_t v = 0;
+	int i;
+	for (i = 7; i >= 0; i--) v = (v << 8) | p[i];
+	return v;
+}
 
-		xd3_close_stream(&stream);
-		xd3_free_stream(&stream);
+static int xpreadall(int fd, unsigned char* buf, size_t bytes, off_t offset) {
+	while (bytes > 0) {
+		ssize_t r = pread(fd, buf, bytes, offset);
+		if (r <= 0) return xerror("Read error");
+		buf += r;
+		offset += r;
+		bytes -= r;
+	}
+	return 1;
+}
 
-		ok = 1;
+/* read the segment table and check it accounts for the whole file */
+static struct segment* segments_load(int fd, int* count) {
+	struct stat st;
+	unsigned char header[SEGMENTS_HEADER_SIZE];
+
+	if ((fstat(fd, &st) != 0) || !xpreadall(fd, header, SEGMENTS_HEADER_SIZE, 0) || (memcmp(header, SEGMENTS_MAGIC, 8) != 0)) {
+		xerror("Not a segmented delta");
+		return NULL;
+	}
+	uint64_t n = segments_le64(header + 8);
+	if ((n == 0) || (n > SEGMENTS_MAX)) {
+		xerror("Bad segment count");
+		return NULL;
 	}
 
-	if (fsource >= 0) close(fsource);
-	if (fdelta >= 0) close(fdelta);
-	if (fout >= 0) close(fout);
+	size_t table_size = n * SEGMENTS_ENTRY_SIZE;
+	unsigned char* table = (unsigned char*)malloc(table_size);
+	struct segment* segments = (struct segment*)calloc(n, sizeof(struct segment));
+	int ok = (table != NULL) && (segments != NULL);
+	if (!ok) xerror("Malloc failed");
+	if (ok) ok = xpreadall(fd, table, table_size, SEGMENTS_HEADER_SIZE);
 
-	if (!ok) unlink(filenameOut);
+	off_t target = 0;
+	off_t delta = SEGMENTS_HEADER_SIZE + table_size;
+	uint64_t i;
+	for (i = 0; ok && (i < n); i++) {
+		uint64_t target_size = segments_le64(table + i * SEGMENTS_ENTRY_SIZE);
+		uint64_t delta_size = segments_le64(table + i * SEGMENTS_ENTRY_SIZE + 8);
+		if ((delta_size == 0) || (delta_size > (uint64_t)(st.st_size - delta)) || (target_size > ((uint64_t)1 << 48))) {
+			ok = xerror("Bad segment table");
+			break;
+		}
+		segments[i].target_offset = target;
+		segments[i].target_size = target_size;
+		segments[i].delta_offset = delta;
+		segments[i].delta_size = delta_size;
+		target += target_size;
+		delta += delta_size;
+	}
+	if (ok && (delta != st.st_size)) ok = xerror("Bad segment table");
+
+	free(table);
+	if (!ok) {
+		free(segments);
+		return NULL;
+	}
+	*count = (int)n;
+	return segments;
+}
+
+/* decode one segment into its range of the output */
+static int dedelta_segment(struct segment_job* job, struct segment* segment, unsigned char* buffer) {
+	int fout = dup(job->fout);
+	if (fout < 0) return xerror("Dup failed");
 
+	struct dedelta_state* state = dedelta_start(job->filenameSource, job->unsignedSize, fout, segment->target_offset, job->progress, 0, job->blocks);
+	if (state == NULL) return 0;
+
+	int ok = 1;
+	off_t offset = segment->delta_offset;
+	off_t left = segment->delta_size;
+	while (ok && (left > 0)) {
+		ssize_t r = pread(job->fsegments, buffer, (left < CHUNK) ? left : CHUNK, offset);
+		if (r <= 0) {
+			ok = xerror("Read error");
+			break;
+		}
+		ok = dedelta_feed(state, buffer, r);
+		offset += r;
+		left -= r;
+	}
+
+	off_t end = 0;
+	ok = dedelta_end(state, ok, NULL, &end);
+	if (ok && (end != segment->target_offset + segment->target_size)) ok = xerror("Segment size mismatch");
+	return ok;
+}
+
+/* hash a finished segment, reading it back from the page cache */
+static int dedelta_segment_hash(struct segment_job* job, struct segment* segment, SHA256_CTX* sha, unsigned char* buffer) {
+	off_t offset = segment->target_offset;
+	off_t left = segment->target_size;
+	while (left > 0) {
+		ssize_t r = pread(job->fout, buffer, (left < CHUNK) ? left : CHUNK, offset);
+		if (r <= 0) return xerror("Read error");
+		SHA256_Update(sha, buffer, r);
+		offset += r;
+		left -= r;
+	}
+	return 1;
+}
+
+static void* dedelta_segment_worker(void* arg) {
+	struct segment_job* job = (struct segment_job*)arg;
+	unsigned char* buffer = (unsigned char*)malloc(CHUNK);
+	if (buffer == NULL) {
+		xerror("Malloc failed");
+		__atomic_store_n(&job->failed, 1, __ATOMIC_RELAXED);
+	}
+
+	while (!__atomic_load_n(&job->failed, __ATOMIC_RELAXED)) {
+		int i = __atomic_fetch_add(&job->next, 1, __ATOMIC_RELAXED);
+		if (i >= job->count) break;
+
+		int ok = dedelta_segment(job, &job->segments[i], buffer);
+
+		pthread_mutex_lock(&job->lock);
+		if (ok) job->segments[i].done = 1;
+		else __atomic_store_n(&job->failed, 1, __ATOMIC_RELAXED);
+		pthread_cond_broadcast(&job->cond);
+		pthread_mutex_unlock(&job->lock);
+	}
+
+	pthread_mutex_lock(&job->lock);
+	pthread_cond_broadcast(&job->cond);
+	pthread_mutex_unlock(&job->lock);
+
+	free(buffer);
+	return NULL;
+}
+
+/* decode all segments on up to threads threads, hashing them in order as
+ * they complete */
+static int dedelta_segments_run(struct segment_job* job, int threads, SHA256_CTX* sha) {
+	pthread_t* workers = NULL;
+	int started = 0;
+	int ok = 1;
+	int i;
+
+	unsigned char* buffer = (unsigned char*)malloc(CHUNK);
+	if (buffer == NULL) return xerror("Malloc failed");
+
+	if (threads > job->count) threads = job->count;
+	if (threads > 1) workers = (pthread_t*)malloc(threads * sizeof(pthread_t));
+	job->blocks = cache_blocks / ((threads > 1) ? threads : 1);
+	if (job->blocks < 1) job->blocks = 1;
+
+	pthread_mutex_init(&job->lock, NULL);
+	pthread_cond_init(&job->cond, NULL);
+	if (workers != NULL) {
+		for (i = 0; i < threads; i++) {
+			if (pthread_create(&workers[started], NULL, dedelta_segment_worker, job) == 0) started++;
+		}
+	}
+
+	for (i = 0; ok && (i < job->count); i++) {
+		struct segment* segment = &job->segments[i];
+		if (started == 0) {
+			/* no threads, decode here in order */
+			ok = dedelta_segment(job, segment, buffer);
+		} else {
+			pthread_mutex_lock(&job->lock);
+			while (!segment->done && !__atomic_load_n(&job->failed, __ATOMIC_RELAXED)) pthread_cond_wait(&job->cond, &job->lock);
+			pthread_mutex_unlock(&job->lock);
+			ok = segment->done;
+		}
+		if (ok && (sha != NULL)) ok = dedelta_segment_hash(job, segment, sha, buffer);
+	}
+	if (!ok) __atomic_store_n(&job->failed, 1, __ATOMIC_RELAXED);
+
+	for (i = 0; i < started; i++) pthread_join(workers[i], NULL);
+	pthread_cond_destroy(&job->cond);
+	pthread_mutex_destroy(&job->lock);
+	free(workers);
+	free(buffer);
+
+	return ok && !job->failed;
+}
+
+int dedelta_segmented(char* filenameSource, int64_t unsignedSize, char* filenameSegments, char* filenameOut, int threads, progress_t* progress, unsigned char* sha256) {
+	struct segment_job job;
+	SHA256_CTX sha;
+	int ok = 0;
+
+	memset(&job, 0, sizeof(job));
+	job.filenameSource = filenameSource;
+	job.unsignedSize = unsignedSize;
+	job.progress = progress;
+	job.fout = -1;
+
+	unlink(filenameOut);
+	job.fsegments = open(filenameSegments, O_RDONLY);
+	if (job.fsegments < 0) return xerror("Could not open delta");
+
+	job.segments = segments_load(job.fsegments, &job.count);
+	if (job.segments != NULL) job.fout = open(filenameOut, O_CREAT | O_RDWR, 0644);
+	if (job.fout >= 0) {
+		struct segment* last = &job.segments[job.count - 1];
+		off_t total = last->target_offset + last->target_size;
+
+		/* reserve the whole output up front, the segments are written all
+		 * over it at once */
+		if ((total > 0) && (posix_fallocate(job.fout, 0, total) != 0) && (ftruncate(job.fout, total) != 0)) {
+			xerror("Could not allocate output");
+		} else {
+			if (sha256 != NULL) SHA256_Init(&sha);
+			ok = dedelta_segments_run(&job, threads, (sha256 != NULL) ? &sha : NULL);
+			if (ok && (sha256 != NULL)) SHA256_Final(sha256, &sha);
+		}
+		if (close(job.fout) != 0) ok = 0;
+	}
+
+	free(job.segments);
+	close(job.fsegments);
+	if (!ok) unlink(filenameOut);
 	return ok;
 }
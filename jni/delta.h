@@ -22,6 +22,64 @@
 #ifndef __DELTA_H
 #define __DELTA_H
 
-int dedelta(char* filenameSource, char* filenameDelta, char* filenameOut);
+#include "progress.h"
+
+struct dedelta_state;
+
+/* sha256, if not NULL, receives the SHA-256 of the output (32 bytes) as it
+ * was written, on success.
+ *
+ * unsignedSize -1 reads the whole source. Otherwise the source must be a
+ * store_signed ZIP, which is read as the store ZIP of that size it was
+ * signed from (see unsigned_view.h) */
+int dedelta(char* filenameSource, int64_t unsignedSize, char* filenameDelta, char* filenameOut, progress_t* progress, unsigned char* sha256);
+
+/* apply count deltas in order, merging them first so the output is
+ * written in a single pass instead of once per delta. All deltas are held
+ * in memory while merging. Lives in merge.c */
+int dedelta_merge(char* filenameSource, int64_t unsignedSize, char** filenamesDelta, int count, char* filenameOut, progress_t* progress, unsigned char* sha256);
+
+/* apply a delta that keeps a prefix of the source as is, such as one that
+ * only adds a signature, by writing the rest over the source in place and
+ * renaming it to filenameOut. The result is hashed from the kept prefix
+ * and the tail as read back; if expect is set and that is not it, the
+ * source is restored. sha256 receives the hash on success. Returns 1 on
+ * success, 0 if the delta is not of that kind, on errors or on a mismatch
+ * with the source left as it was (use dedelta instead), -1 if the source
+ * was damaged. Lives in merge.c */
+int dedelta_append(char* filenameSource, char* filenameDelta, char* filenameOut, progress_t* progress, unsigned char* expect, unsigned char* sha256);
+
+/* apply a segmented delta: the target cut into ranges, each with its own
+ * delta against the whole source, so they can be decoded at the same time
+ * on up to threads threads. The file is laid out as (little endian)
+ *
+ *   "ODSEGS01"                       magic
+ *   uint64 count
+ *   count x {                        segment table, in target order
+ *     uint64 target_size             bytes of the target it produces
+ *     uint64 delta_size              bytes of its delta
+ *   }
+ *   count x VCDIFF delta             back to back, in table order
+ *
+ * unsignedSize and sha256 are as for dedelta */
+int dedelta_segmented(char* filenameSource, int64_t unsignedSize, char* filenameSegments, char* filenameOut, int threads, progress_t* progress, unsigned char* sha256);
+
+/* streaming variant: open, feed the delta in order, close with finish = 1
+ * to flush, or finish = 0 to abort. The output file is removed unless
+ * close reports success. If opened with hash set, close fills sha256 as
+ * dedelta does. */
+struct dedelta_state* dedelta_open(char* filenameSource, int64_t unsignedSize, char* filenameOut, progress_t* progress, int hash);
+int dedelta_feed(struct dedelta_state* state, unsigned char* data, int length);
+int dedelta_close(struct dedelta_state* state, int finish, unsigned char* sha256);
+
+/* Source blocks are served from a mapping of the source file where
+ * possible. Where not, they are read from disk into a cache of this many
+ * 256 KiB blocks with LRU eviction (default 1). Applies to dedelta calls
+ * started afterwards */
+void dedelta_set_cache_blocks(int blocks);
+
+/* Cumulative source block requests since load: served from the cache,
+ * read from disk, served from a mapping */
+void dedelta_get_cache_stats(int64_t* hits, int64_t* misses, int64_t* mapped);
 
 #endif
@@ -20,14 +20,34 @@
  */
 
 #include <jni.h>
+#include <stdint.h>
+#include <stdlib.h>
 #include "zipadjust.h"
 #include "delta.h"
+#include "hash.h"
 
-JNIEXPORT jint JNICALL Java_eu_chainfire_opendelta_Native_zipadjust(JNIEnv * env, jobject clazz, jstring jFilenameIn, jstring jFilenameOut, jint decompress) {
+#define SHA256_SIZE 32
+
+static progress_t* get_progress(JNIEnv * env, jobject jProgress) {
+	if (jProgress == NULL) return NULL;
+	if ((*env)->GetDirectBufferCapacity(env, jProgress) < (jlong)sizeof(progress_t)) return NULL;
+	return (progress_t*)(*env)->GetDirectBufferAddress(env, jProgress);
+}
+
+/* the digest goes to jSha256 only once the operation succeeded */
+static void set_sha256(JNIEnv * env, jbyteArray jSha256, unsigned char* sha256, jint ret) {
+	if ((jSha256 == NULL) || (ret != 1)) return;
+	if ((*env)->GetArrayLength(env, jSha256) < SHA256_SIZE) return;
+	(*env)->SetByteArrayRegion(env, jSha256, 0, SHA256_SIZE, (jbyte*)sha256);
+}
+
+JNIEXPORT jint JNICALL Java_eu_chainfire_opendelta_Native_zipadjust(JNIEnv * env, jobject clazz, jstring jFilenameIn, jstring jFilenameOut, jint decompress, jint threads, jobject jProgress, jbyteArray jSha256) {
+	unsigned char sha256[SHA256_SIZE];
 	const char* filenameIn = (*env)->GetStringUTFChars(env, jFilenameIn, 0);
 	const char* filenameOut = (*env)->GetStringUTFChars(env, jFilenameOut, 0);
 
-	jint ret = zipadjust((char*)filenameIn, (char*)filenameOut, decompress);
+	jint ret = zipadjust((char*)filenameIn, (char*)filenameOut, decompress, threads, get_progress(env, jProgress), (jSha256 != NULL) ? sha256 : NULL);
+	set_sha256(env, jSha256, sha256, ret);
 
 	(*env)->ReleaseStringUTFChars(env, jFilenameOut, filenameOut);
 	(*env)->ReleaseStringUTFChars(env, jFilenameIn, filenameIn);
@@ -35,12 +55,14 @@ JNIEXPORT jint JNICALL Java_eu_chainfire_opendelta_Native_zipadjust(JNIEnv * env
 	return ret;
 }
 
-JNIEXPORT jint JNICALL Java_eu_chainfire_opendelta_Native_dedelta(JNIEnv * env, jobject clazz, jstring jFilenameSource, jstring jFilenameDelta, jstring jFilenameOut) {
+JNIEXPORT jint JNICALL Java_eu_chainfire_opendelta_Native_dedelta(JNIEnv * env, jobject clazz, jstring jFilenameSource, jlong unsignedSize, jstring jFilenameDelta, jstring jFilenameOut, jobject jProgress, jbyteArray jSha256) {
+	unsigned char sha256[SHA256_SIZE];
 	const char* filenameSource = (*env)->GetStringUTFChars(env, jFilenameSource, 0);
 	const char* filenameDelta = (*env)->GetStringUTFChars(env, jFilenameDelta, 0);
 	const char* filenameOut = (*env)->GetStringUTFChars(env, jFilenameOut, 0);
 
-	jint ret = dedelta((char*)filenameSource, (char*)filenameDelta, (char*)filenameOut);
+	jint ret = dedelta((char*)filenameSource, unsignedSize, (char*)filenameDelta, (char*)filenameOut, get_progress(env, jProgress), (jSha256 != NULL) ? sha256 : NULL);
+	set_sha256(env, jSha256, sha256, ret);
 
 	(*env)->ReleaseStringUTFChars(env, jFilenameOut, filenameOut);
 	(*env)->ReleaseStringUTFChars(env, jFilenameDelta, filenameDelta);
@@ -48,3 +70,127 @@ JNIEXPORT jint JNICALL Java_eu_chainfire_opendelta_Native_dedelta(JNIEnv * env,
 
 	return ret;
 }
+
+JNIEXPORT jint JNICALL Java_eu_chainfire_opendelta_Native_dedeltaSegmented(JNIEnv * env, jobject clazz, jstring jFilenameSource, jlong unsignedSize, jstring jFilenameSegments, jstring jFilenameOut, jint threads, jobject jProgress, jbyteArray jSha256) {
+	unsigned char sha256[SHA256_SIZE];
+	const char* filenameSource = (*env)->GetStringUTFChars(env, jFilenameSource, 0);
+	const char* filenameSegments = (*env)->GetStringUTFChars(env, jFilenameSegments, 0);
+	const char* filenameOut = (*env)->GetStringUTFChars(env, jFilenameOut, 0);
+
+	jint ret = dedelta_segmented((char*)filenameSource, unsignedSize, (char*)filenameSegments, (char*)filenameOut, threads, get_progress(env, jProgress), (jSha256 != NULL) ? sha256 : NULL);
+	set_sha256(env, jSha256, sha256, ret);
+
+	(*env)->ReleaseStringUTFChars(env, jFilenameOut, filenameOut);
+	(*env)->ReleaseStringUTFChars(env, jFilenameSegments, filenameSegments);
+	(*env)->ReleaseStringUTFChars(env, jFilenameSource, filenameSource);
+
+	return ret;
+}
+
+JNIEXPORT jint JNICALL Java_eu_chainfire_opendelta_Native_dedeltaAppend(JNIEnv * env, jobject clazz, jstring jFilenameSource, jstring jFilenameDelta, jstring jFilenameOut, jobject jProgress, jbyteArray jExpect, jbyteArray jSha256) {
+	unsigned char sha256[SHA256_SIZE];
+	unsigned char expect[SHA256_SIZE];
+	if ((jExpect == NULL) || ((*env)->GetArrayLength(env, jExpect) < SHA256_SIZE)) return 0;
+	(*env)->GetByteArrayRegion(env, jExpect, 0, SHA256_SIZE, (jbyte*)expect);
+
+	const char* filenameSource = (*env)->GetStringUTFChars(env, jFilenameSource, 0);
+	const char* filenameDelta = (*env)->GetStringUTFChars(env, jFilenameDelta, 0);
+	const char* filenameOut = (*env)->GetStringUTFChars(env, jFilenameOut, 0);
+
+	jint ret = dedelta_append((char*)filenameSource, (char*)filenameDelta, (char*)filenameOut, get_progress(env, jProgress), expect, (jSha256 != NULL) ? sha256 : NULL);
+	set_sha256(env, jSha256, sha256, ret);
+
+	(*env)->ReleaseStringUTFChars(env, jFilenameOut, filenameOut);
+	(*env)->ReleaseStringUTFChars(env, jFilenameDelta, filenameDelta);
+	(*env)->ReleaseStringUTFChars(env, jFilenameSource, filenameSource);
+
+	return ret;
+}
+
+JNIEXPORT jint JNICALL Java_eu_chainfire_opendelta_Native_dedeltaMerge(JNIEnv * env, jobject clazz, jstring jFilenameSource, jlong unsignedSize, jobjectArray jFilenamesDelta, jstring jFilenameOut, jobject jProgress, jbyteArray jSha256) {
+	unsigned char sha256[SHA256_SIZE];
+	jsize count = (*env)->GetArrayLength(env, jFilenamesDelta);
+	jstring* jDeltas = (jstring*)calloc(count + 1, sizeof(jstring));
+	char** filenamesDelta = (char**)calloc(count + 1, sizeof(char*));
+	jint ret = 0;
+	jsize i;
+
+	if ((jDeltas != NULL) && (filenamesDelta != NULL)) {
+		const char* filenameSource = (*env)->GetStringUTFChars(env, jFilenameSource, 0);
+		const char* filenameOut = (*env)->GetStringUTFChars(env, jFilenameOut, 0);
+		for (i = 0; i < count; i++) {
+			jDeltas[i] = (jstring)(*env)->GetObjectArrayElement(env, jFilenamesDelta, i);
+			filenamesDelta[i] = (char*)(*env)->GetStringUTFChars(env, jDeltas[i], 0);
+		}
+
+		ret = dedelta_merge((char*)filenameSource, unsignedSize, filenamesDelta, count, (char*)filenameOut, get_progress(env, jProgress), (jSha256 != NULL) ? sha256 : NULL);
+		set_sha256(env, jSha256, sha256, ret);
+
+		for (i = 0; i < count; i++) {
+			(*env)->ReleaseStringUTFChars(env, jDeltas[i], filenamesDelta[i]);
+			(*env)->DeleteLocalRef(env, jDeltas[i]);
+		}
+		(*env)->ReleaseStringUTFChars(env, jFilenameOut, filenameOut);
+		(*env)->ReleaseStringUTFChars(env, jFilenameSource, filenameSource);
+	}
+
+	free(filenamesDelta);
+	free(jDeltas);
+
+	return ret;
+}
+
+JNIEXPORT jlong JNICALL Java_eu_chainfire_opendelta_Native_dedeltaOpen(JNIEnv * env, jobject clazz, jstring jFilenameSource, jlong unsignedSize, jstring jFilenameOut, jobject jProgress, jboolean hash) {
+	const char* filenameSource = (*env)->GetStringUTFChars(env, jFilenameSource, 0);
+	const char* filenameOut = (*env)->GetStringUTFChars(env, jFilenameOut, 0);
+
+	struct dedelta_state* state = dedelta_open((char*)filenameSource, unsignedSize, (char*)filenameOut, get_progress(env, jProgress), hash);
+
+	(*env)->ReleaseStringUTFChars(env, jFilenameOut, filenameOut);
+	(*env)->ReleaseStringUTFChars(env, jFilenameSource, filenameSource);
+
+	return (jlong)(intptr_t)state;
+}
+
+JNIEXPORT jint JNICALL Java_eu_chainfire_opendelta_Native_dedeltaFeed(JNIEnv * env, jobject clazz, jlong handle, jobject jBuffer, jint length) {
+	unsigned char* data = (unsigned char*)(*env)->GetDirectBufferAddress(env, jBuffer);
+	if ((handle == 0) || (data == NULL) || (length > (*env)->GetDirectBufferCapacity(env, jBuffer))) return 0;
+
+	return dedelta_feed((struct dedelta_state*)(intptr_t)handle, data, length);
+}
+
+JNIEXPORT jint JNICALL Java_eu_chainfire_opendelta_Native_dedeltaClose(JNIEnv * env, jobject clazz, jlong handle, jint finish, jbyteArray jSha256) {
+	unsigned char sha256[SHA256_SIZE];
+	if (handle == 0) return 0;
+
+	jint ret = dedelta_close((struct dedelta_state*)(intptr_t)handle, finish, (jSha256 != NULL) ? sha256 : NULL);
+	set_sha256(env, jSha256, sha256, ret);
+
+	return ret;
+}
+
+JNIEXPORT jint JNICALL Java_eu_chainfire_opendelta_Native_sha256File(JNIEnv * env, jobject clazz, jstring jFilename, jobject jProgress, jbyteArray jSha256) {
+	unsigned char sha256[SHA256_SIZE];
+	const char* filename = (*env)->GetStringUTFChars(env, jFilename, 0);
+
+	jint ret = sha256_file((char*)filename, get_progress(env, jProgress), sha256);
+	set_sha256(env, jSha256, sha256, ret);
+
+	(*env)->ReleaseStringUTFChars(env, jFilename, filename);
+
+	return ret;
+}
+
+JNIEXPORT void JNICALL Java_eu_chainfire_opendelta_Native_setSourceCacheBlocks(JNIEnv * env, jobject clazz, jint blocks) {
+	dedelta_set_cache_blocks(blocks);
+}
+
+JNIEXPORT jlongArray JNICALL Java_eu_chainfire_opendelta_Native_getSourceCacheStats(JNIEnv * env, jobject clazz) {
+	int64_t hits, misses, mapped;
+	dedelta_get_cache_stats(&hits, &misses, &mapped);
+
+	jlong stats[3] = { hits, misses, mapped };
+	jlongArray ret = (*env)->NewLongArray(env, 3);
+	if (ret != NULL) (*env)->SetLongArrayRegion(env, ret, 0, 3, stats);
+	return ret;
+}
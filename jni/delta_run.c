@@ -25,13 +25,17 @@
 #include "delta.h"
 
 int main(int argc, char *argv[]) {
+	if (argc > 4) {
+		dedelta_merge(argv[1], -1, &argv[2], argc - 3, argv[argc - 1], NULL, NULL);
+		return 0;
+	}
 	if (argc >= 4) {
-		dedelta(argv[1], argv[2], argv[3]);
+		dedelta(argv[1], -1, argv[2], argv[3], NULL, NULL);
 		return 0;
 	}
 	
 	printf("dedelta - Copyright (c) 2013 Jorrit Jongma (Chainfire)\n");
 	printf("\n");
-	printf("Usage: dedelta source delta output\n");
+	printf("Usage: dedelta source delta [delta...] output\n");
 	return 0;
 }
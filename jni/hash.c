@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2021 Yet Another AOSP Project
+ */
+/*
+ * This file is part of OpenDelta.
+ *
+ * OpenDelta is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDelta is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenDelta. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <unistd.h>
+#include <openssl/sha.h>
+#include "hash.h"
+
+/* large enough that the per-read overhead is gone, the kernel's readahead
+ * keeps the next one coming while this one is hashed */
+#define HASH_CHUNK (4 * 1024 * 1024)
+
+static int xerror(char* message) {
+	fprintf(stderr, "%s\n", message);
+	return 0;
+}
+
+int sha256_file(char* filename, progress_t* progress, unsigned char* sha256) {
+	int ok = 0;
+	SHA256_CTX sha;
+
+	int fd = open(filename, O_RDONLY);
+	if (fd < 0) return xerror("Could not open file");
+
+	unsigned char* buf = (unsigned char*)malloc(HASH_CHUNK);
+	if (buf == NULL) {
+		close(fd);
+		return xerror("Malloc failed");
+	}
+
+	/* we read it once, in order: have the kernel read ahead further */
+	posix_fadvise(fd, 0, 0, POSIX_FADV_SEQUENTIAL);
+
+	SHA256_Init(&sha);
+	while (1) {
+		if (progress_cancelled(progress)) {
+			xerror("Cancelled");
+			break;
+		}
+		ssize_t r = read(fd, buf, HASH_CHUNK);
+		if (r < 0) {
+			if (errno == EINTR) continue;
+			xerror("Read failed");
+			break;
+		}
+		if (r == 0) {
+			ok = 1;
+			break;
+		}
+		SHA256_Update(&sha, buf, r);
+		progress_add(progress, r, 0);
+	}
+	if (ok) SHA256_Final(sha256, &sha);
+
+	free(buf);
+	close(fd);
+
+	return ok;
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2021 Yet Another AOSP Project
+ */
+/*
+ * This file is part of OpenDelta.
+ *
+ * OpenDelta is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDelta is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenDelta. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef __HASH_H
+#define __HASH_H
+
+#include "progress.h"
+
+/* SHA-256 of a whole file into sha256 (32 bytes), read front to back in
+ * large chunks. libcrypto uses the ARMv8 crypto extensions or SHA-NI on
+ * its own where the CPU has them. progress->in counts the bytes hashed */
+int sha256_file(char* filename, progress_t* progress, unsigned char* sha256);
+
+#endif
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2021 Yet Another AOSP Project
+ */
+/*
+ * This file is part of OpenDelta.
+ *
+ * OpenDelta is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDelta is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenDelta. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/* Benchmark for sha256_file, to be run on the device itself:
+ *
+ *   adb push sha256bench /data/local/tmp/
+ *   adb shell /data/local/tmp/sha256bench -n 5 -cold /sdcard/OpenDelta/<build>.zip
+ *
+ * Every run hashes the file with sha256_file (what FileHasher uses), then
+ * with 256 KiB reads and no readahead hint, the pattern of the previous
+ * FileInputStream + MessageDigest code. -cold drops the file from the page
+ * cache before each pass, which is the case that matters for a check after
+ * a reboot; without it the passes measure hashing from memory. */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <time.h>
+#include <unistd.h>
+#include <sys/stat.h>
+#include <openssl/sha.h>
+#include "hash.h"
+
+#define STREAM_CHUNK (256 * 1024)
+
+static double now_ms() {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return ts.tv_sec * 1000.0 + ts.tv_nsec / 1000000.0;
+}
+
+static void drop_cache(char* filename) {
+	int fd = open(filename, O_RDONLY);
+	if (fd < 0) return;
+	posix_fadvise(fd, 0, 0, POSIX_FADV_DONTNEED);
+	close(fd);
+}
+
+static int sha256_stream(char* filename, unsigned char* sha256) {
+	int fd = open(filename, O_RDONLY);
+	if (fd < 0) return 0;
+	unsigned char* buf = (unsigned char*)malloc(STREAM_CHUNK);
+	if (buf == NULL) {
+		close(fd);
+		return 0;
+	}
+	SHA256_CTX sha;
+	SHA256_Init(&sha);
+	int ok = 0;
+	while (1) {
+		ssize_t r = read(fd, buf, STREAM_CHUNK);
+		if ((r < 0) && (errno == EINTR)) continue;
+		if (r <= 0) {
+			ok = (r == 0);
+			break;
+		}
+		SHA256_Update(&sha, buf, r);
+	}
+	if (ok) SHA256_Final(sha256, &sha);
+	free(buf);
+	close(fd);
+	return ok;
+}
+
+static void report(char* name, int run, double ms, off_t size, unsigned char* sha256) {
+	int i;
+	printf("%-6s #%d %8.0f ms %8.1f MiB/s  ", name, run, ms, (size / 1048576.0) / (ms / 1000.0));
+	for (i = 0; i < 32; i++) printf("%02x", sha256[i]);
+	printf("\n");
+}
+
+int main(int argc, char *argv[]) {
+	int runs = 3;
+	int cold = 0;
+	char* filename = NULL;
+	int i;
+
+	for (i = 1; i < argc; i++) {
+		if ((strcmp(argv[i], "-n") == 0) && (i + 1 < argc)) {
+			runs = atoi(argv[++i]);
+		} else if (strcmp(argv[i], "-cold") == 0) {
+			cold = 1;
+		} else {
+			filename = argv[i];
+		}
+	}
+
+	struct stat st;
+	if ((filename == NULL) || (runs < 1) || (stat(filename, &st) != 0)) {
+		printf("sha256bench - time sha256_file against a plain read loop\n");
+		printf("\n");
+		printf("Usage: sha256bench [-n runs] [-cold] file\n");
+		return 1;
+	}
+	printf("%s: %lld bytes, %d runs, %s cache\n", filename, (long long)st.st_size, runs, cold ? "cold" : "warm");
+
+	unsigned char sha256[32];
+	for (i = 1; i <= runs; i++) {
+		double start;
+
+		if (cold) drop_cache(filename);
+		start = now_ms();
+		if (!sha256_file(filename, NULL, sha256)) return 1;
+		report("native", i, now_ms() - start, st.st_size, sha256);
+
+		if (cold) drop_cache(filename);
+		start = now_ms();
+		if (!sha256_stream(filename, sha256)) return 1;
+		report("stream", i, now_ms() - start, st.st_size, sha256);
+	}
+	return 0;
+}
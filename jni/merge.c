@@ -0,0 +1,427 @@
+/*
+ * Copyright (C) 2021 Yet Another AOSP Project
+ */
+/*
+ * This file is part of OpenDelta.
+ *
+ * OpenDelta is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDelta is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenDelta. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/* xdelta3's merge code is only reachable from within its own translation
+ * unit, so this file builds xdelta3 (replacing xdelta3.c in the build) and
+ * adds dedelta_merge on top of it. */
+
+/* ahead of xdelta3.c, whose _POSIX_SOURCE would hide pread and friends */
+#include <stdarg.h>
+#include <unistd.h>
+#include <fcntl.h>
+#include <sys/stat.h>
+#include <openssl/sha.h>
+#include "xdelta3-3.0.7/xdelta3.c"
+#include "xdelta3-3.0.7/xdelta3-internal.h"
+
+void xprintf(const char* fmt, ...) {
+	va_list args;
+	va_start(args, fmt);
+	vfprintf(stderr, fmt, args);
+	va_end(args);
+}
+
+#define XD3_LIB_ERRMSG(stream, ret) "%s: %d\n", xd3_errstring(stream), ret
+
+#include "xdelta3-3.0.7/xdelta3-merge.h"
+
+#include "delta.h"
+#include "unsigned_view.h"
+
+#define CHUNK (256 * 1024)
+
+struct merge_output {
+	int fd;
+	unsigned char* buffer;
+	xoff_t buffer_start;
+	usize_t buffer_used;
+	progress_t* progress;
+	SHA256_CTX* sha;
+};
+
+static int xerror(char* message) {
+	fprintf(stderr, "%s\n", message);
+	return 0;
+}
+
+/* decode a delta into stream's whole_target, without touching its source */
+static int merge_load(xd3_stream* stream, char* filenameDelta, unsigned char* buffer, progress_t* progress) {
+	xd3_config config;
+	int ok = 1;
+
+	memset(stream, 0, sizeof(xd3_stream));
+	int fdelta = open(filenameDelta, O_RDONLY);
+	if (fdelta < 0) return xerror("Could not open delta");
+
+	memset(&config, 0, sizeof(xd3_config));
+	xd3_init_config(&config, XD3_ADLER32_NOVER | XD3_SKIP_EMIT);
+	config.winsize = CHUNK;
+	if ((xd3_config_stream(stream, &config) != 0) || (xd3_whole_state_init(stream) != 0)) {
+		close(fdelta);
+		return xerror("Stream config failed");
+	}
+
+	ssize_t r;
+	do {
+		if (progress_cancelled(progress)) {
+			ok = xerror("Cancelled");
+			break;
+		}
+		r = read(fdelta, buffer, CHUNK);
+		if (r < 0) {
+			ok = xerror("Read error");
+			break;
+		}
+		progress_add(progress, r, 0);
+		if (r < CHUNK) xd3_set_flags(stream, XD3_FLUSH | stream->flags);
+		xd3_avail_input(stream, buffer, r);
+
+		while (ok) {
+			int ret = xd3_decode_input(stream);
+			if (ret == XD3_INPUT) break;
+			switch (ret) {
+			case XD3_OUTPUT:
+				if (xd3_whole_append_window(stream) != 0) ok = xerror("Merge window failed");
+				xd3_consume_output(stream);
+				break;
+			case XD3_GOTHEADER:
+			case XD3_WINSTART:
+			case XD3_WINFINISH:
+				break;
+			default:
+				fprintf(stderr, "Decode error: %s\n", stream->msg != NULL ? stream->msg : "?");
+				ok = 0;
+				break;
+			}
+		}
+	} while (ok && (r == CHUNK));
+
+	close(fdelta);
+	return ok;
+}
+
+static int merge_flush(struct merge_output* out) {
+	usize_t done = 0;
+	if (progress_cancelled(out->progress)) return xerror("Cancelled");
+	while (done < out->buffer_used) {
+		ssize_t w = pwrite(out->fd, out->buffer + done, out->buffer_used - done, out->buffer_start + done);
+		if (w <= 0) return xerror("Write error");
+		done += w;
+	}
+	if (out->sha != NULL) SHA256_Update(out->sha, out->buffer, out->buffer_used);
+	progress_add(out->progress, 0, out->buffer_used);
+	out->buffer_start += out->buffer_used;
+	out->buffer_used = 0;
+	return 1;
+}
+
+/* make room in the output buffer, returns how much is available */
+static usize_t merge_reserve(struct merge_output* out) {
+	if ((out->buffer_used == CHUNK) && !merge_flush(out)) return 0;
+	return CHUNK - out->buffer_used;
+}
+
+/* view_size > 0 reads fd as an unsigned view of that size */
+static int merge_copy(struct merge_output* out, int fd, xoff_t addr, usize_t size, off_t view_size) {
+	while (size > 0) {
+		usize_t n = merge_reserve(out);
+		if (n == 0) return 0;
+		if (n > size) n = size;
+		ssize_t r = pread(fd, out->buffer + out->buffer_used, n, addr);
+		if (r <= 0) return xerror("Read error");
+		if (view_size > 0) unsigned_view_patch(out->buffer + out->buffer_used, addr, r, view_size);
+		out->buffer_used += r;
+		addr += r;
+		size -= r;
+	}
+	return 1;
+}
+
+/* copy from output already produced, which may overlap what is being
+ * written, as in a run */
+static int merge_copy_target(struct merge_output* out, xoff_t addr, usize_t size) {
+	while (size > 0) {
+		usize_t n = merge_reserve(out);
+		if (n == 0) return 0;
+		if (n > size) n = size;
+		if (addr < out->buffer_start) {
+			if (n > out->buffer_start - addr) n = out->buffer_start - addr;
+			if (!merge_copy(out, out->fd, addr, n, 0)) return 0;
+		} else {
+			unsigned char* from = out->buffer + (addr - out->buffer_start);
+			unsigned char* to = out->buffer + out->buffer_used;
+			usize_t i;
+			for (i = 0; i < n; i++) to[i] = from[i];
+			out->buffer_used += n;
+		}
+		addr += n;
+		size -= n;
+	}
+	return 1;
+}
+
+static int merge_fill(struct merge_output* out, const unsigned char* data, usize_t size, int run) {
+	while (size > 0) {
+		usize_t n = merge_reserve(out);
+		if (n == 0) return 0;
+		if (n > size) n = size;
+		if (run) {
+			memset(out->buffer + out->buffer_used, *data, n);
+		} else {
+			memcpy(out->buffer + out->buffer_used, data, n);
+			data += n;
+		}
+		out->buffer_used += n;
+		size -= n;
+	}
+	return 1;
+}
+
+/* write out the file described by whole, which only refers to fsource */
+static int merge_apply(xd3_whole_state* whole, int fsource, int64_t unsignedSize, struct merge_output* out) {
+	struct stat st;
+	if (fstat(fsource, &st) != 0) return xerror("Stat failed");
+	off_t view_size = 0;
+	if (unsignedSize >= 0) {
+		if (!unsigned_view_check(fsource, st.st_size, unsignedSize)) return xerror("Source is not a signed store ZIP");
+		view_size = unsignedSize;
+	}
+	off_t source_size = (view_size > 0) ? view_size : st.st_size;
+
+	usize_t i;
+	for (i = 0; i < whole->instlen; i++) {
+		xd3_winst* inst = &whole->inst[i];
+		if (inst->position != out->buffer_start + out->buffer_used) return xerror("Merge position mismatch");
+
+		switch (inst->type) {
+		case XD3_RUN:
+			if (!merge_fill(out, &whole->adds[inst->addr], inst->size, 1)) return 0;
+			break;
+		case XD3_ADD:
+			if (!merge_fill(out, &whole->adds[inst->addr], inst->size, 0)) return 0;
+			break;
+		default:
+			if (inst->mode == VCD_SOURCE) {
+				if (inst->addr + inst->size > (xoff_t)source_size) return xerror("Source copy out of range");
+				if (!merge_copy(out, fsource, inst->addr, inst->size, view_size)) return 0;
+			} else {
+				if (inst->addr >= inst->position) return xerror("Target copy out of range");
+				if (!merge_copy_target(out, inst->addr, inst->size)) return 0;
+			}
+			break;
+		}
+	}
+	return merge_flush(out);
+}
+
+int dedelta_merge(char* filenameSource, int64_t unsignedSize, char** filenamesDelta, int count, char* filenameOut, progress_t* progress, unsigned char* sha256) {
+	xd3_stream merged;
+	xd3_stream next;
+	int ok = 1;
+	int i;
+
+	unsigned char* buffer = (unsigned char*)malloc(CHUNK);
+	if (buffer == NULL) return xerror("Malloc failed");
+
+	memset(&merged, 0, sizeof(xd3_stream));
+	if ((xd3_config_stream(&merged, NULL) != 0) || (xd3_whole_state_init(&merged) != 0)) ok = xerror("Stream config failed");
+
+	/* each delta is applied to the merge of those before it, so the result
+	 * takes the original source straight to the final output */
+	for (i = 0; ok && (i < count); i++) {
+		ok = merge_load(&next, filenamesDelta[i], buffer, progress);
+		if (ok && (i > 0) && (xd3_merge_input_output(&next, &merged.whole_target) != 0)) ok = xerror("Merge failed");
+		if (ok) xd3_swap_whole_state(&merged.whole_target, &next.whole_target);
+		xd3_free_stream(&next);
+	}
+
+	if (ok && (count > 0)) {
+		struct merge_output out;
+		SHA256_CTX sha;
+		out.buffer = buffer;
+		out.buffer_start = 0;
+		out.buffer_used = 0;
+		out.progress = progress;
+		out.sha = NULL;
+		if (sha256 != NULL) {
+			SHA256_Init(&sha);
+			out.sha = &sha;
+		}
+
+		int fsource = open(filenameSource, O_RDONLY);
+		unlink(filenameOut);
+		out.fd = open(filenameOut, O_CREAT | O_RDWR, 0644);
+		if ((fsource < 0) || (out.fd < 0)) {
+			ok = xerror("Could not open files");
+		} else {
+			ok = merge_apply(&merged.whole_target, fsource, unsignedSize, &out);
+		}
+		if (fsource >= 0) close(fsource);
+		if ((out.fd >= 0) && (close(out.fd) != 0)) ok = 0;
+		if (ok && (out.sha != NULL)) SHA256_Final(sha256, out.sha);
+	} else {
+		ok = 0;
+	}
+
+	xd3_free_stream(&merged);
+	free(buffer);
+
+	if (!ok) unlink(filenameOut);
+	return ok;
+}
+
+/* the tail is built in memory before the source is touched */
+#define APPEND_TAIL_MAX (16 * CHUNK)
+
+/* fill tail, target bytes [prefix, length), from whole. Bytes before prefix
+ * are the source's own, and the source is still intact */
+static int append_build_tail(xd3_whole_state* whole, usize_t first, int fsource, xoff_t prefix, unsigned char* tail) {
+	usize_t i;
+	for (i = first; i < whole->instlen; i++) {
+		xd3_winst* inst = &whole->inst[i];
+		unsigned char* to = tail + (inst->position - prefix);
+		usize_t n;
+
+		switch (inst->type) {
+		case XD3_RUN:
+			memset(to, whole->adds[inst->addr], inst->size);
+			break;
+		case XD3_ADD:
+			memcpy(to, &whole->adds[inst->addr], inst->size);
+			break;
+		default:
+			if ((inst->mode != VCD_SOURCE) && (inst->addr >= inst->position)) return xerror("Target copy out of range");
+			for (n = 0; n < inst->size; ) {
+				xoff_t addr = inst->addr + n;
+				if ((inst->mode != VCD_SOURCE) && (addr >= prefix)) {
+					/* may overlap what is being written, as in a run */
+					to[n] = tail[addr - prefix];
+					n++;
+				} else {
+					usize_t want = inst->size - n;
+					if ((inst->mode != VCD_SOURCE) && (want > prefix - addr)) want = prefix - addr;
+					ssize_t r = pread(fsource, to + n, want, addr);
+					if (r <= 0) return xerror("Read error");
+					n += r;
+				}
+			}
+			break;
+		}
+	}
+	return 1;
+}
+
+/* hash fd's bytes [offset, offset + size) into sha, counted as output */
+static int append_hash(int fd, xoff_t offset, xoff_t size, unsigned char* buffer, SHA256_CTX* sha, progress_t* progress) {
+	while (size > 0) {
+		if (progress_cancelled(progress)) return xerror("Cancelled");
+		ssize_t r = pread(fd, buffer, (size > CHUNK) ? CHUNK : size, offset);
+		if (r <= 0) return xerror("Read error");
+		SHA256_Update(sha, buffer, r);
+		progress_add(progress, 0, r);
+		offset += r;
+		size -= r;
+	}
+	return 1;
+}
+
+/* make fd data followed by nothing from offset on, and durable */
+static int append_write(int fd, unsigned char* data, xoff_t size, xoff_t offset) {
+	xoff_t done = 0;
+	while (done < size) {
+		ssize_t w = pwrite(fd, data + done, size - done, offset + done);
+		if (w <= 0) return 0;
+		done += w;
+	}
+	return (ftruncate(fd, offset + size) == 0) && (fsync(fd) == 0);
+}
+
+int dedelta_append(char* filenameSource, char* filenameDelta, char* filenameOut, progress_t* progress, unsigned char* expect, unsigned char* sha256) {
+	xd3_stream stream;
+	int ret = 0;
+
+	unsigned char* buffer = (unsigned char*)malloc(CHUNK);
+	if (buffer == NULL) return xerror("Malloc failed");
+
+	int fsource = open(filenameSource, O_RDWR);
+	if (fsource < 0) {
+		free(buffer);
+		return xerror("Could not open source");
+	}
+
+	if (merge_load(&stream, filenameDelta, buffer, progress)) {
+		xd3_whole_state* whole = &stream.whole_target;
+		struct stat st;
+		xoff_t prefix = 0;
+		usize_t first = 0;
+
+		/* leading copies of the source onto itself can stay where they are */
+		while ((first < whole->instlen) && (whole->inst[first].type != XD3_RUN) && (whole->inst[first].type != XD3_ADD) &&
+				(whole->inst[first].mode == VCD_SOURCE) && (whole->inst[first].addr == prefix) && (whole->inst[first].position == prefix)) {
+			prefix += whole->inst[first].size;
+			first++;
+		}
+
+		xoff_t length = whole->length;
+		unsigned char* tail = NULL;
+		unsigned char* original = NULL;
+		SHA256_CTX sha;
+		SHA256_Init(&sha);
+		if (fstat(fsource, &st) != 0) {
+			xerror("Stat failed");
+		} else if ((prefix == 0) || (prefix > (xoff_t)st.st_size) || (length < prefix) || (length - prefix > APPEND_TAIL_MAX) ||
+				((xoff_t)st.st_size - prefix > APPEND_TAIL_MAX)) {
+			xerror("Not an append delta");
+		} else if (((tail = (unsigned char*)malloc(length - prefix + 1)) == NULL) ||
+				((original = (unsigned char*)malloc(st.st_size - prefix + 1)) == NULL)) {
+			xerror("Malloc failed");
+		} else if (append_build_tail(whole, first, fsource, prefix, tail) &&
+				(pread(fsource, original, st.st_size - prefix, prefix) == (ssize_t)(st.st_size - prefix)) &&
+				append_hash(fsource, 0, prefix, buffer, &sha, progress)) {
+			/* from here on the source is being changed into the output. The
+			 * tail is hashed as read back, and the output only takes the
+			 * source's place if it is what we expect. Otherwise the
+			 * original tail is put back so the caller can still dedelta */
+			ret = -1;
+			unsigned char sum[SHA256_DIGEST_LENGTH];
+			if (append_write(fsource, tail, length - prefix, prefix) && append_hash(fsource, prefix, length - prefix, buffer, &sha, progress)) {
+				SHA256_Final(sum, &sha);
+				if ((expect != NULL) && (memcmp(sum, expect, SHA256_DIGEST_LENGTH) != 0)) {
+					xerror("Append result mismatch");
+				} else if (rename(filenameSource, filenameOut) != 0) {
+					xerror("Rename failed");
+				} else {
+					if (sha256 != NULL) memcpy(sha256, sum, SHA256_DIGEST_LENGTH);
+					ret = 1;
+				}
+			} else {
+				xerror("Append failed");
+			}
+			if ((ret != 1) && append_write(fsource, original, st.st_size - prefix, prefix)) ret = 0;
+		}
+		if (tail != NULL) free(tail);
+		if (original != NULL) free(original);
+	}
+
+	xd3_free_stream(&stream);
+	close(fsource);
+	free(buffer);
+	return ret;
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2021 Yet Another AOSP Project
+ */
+/*
+ * This file is part of OpenDelta.
+ *
+ * OpenDelta is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDelta is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenDelta. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef __PROGRESS_H
+#define __PROGRESS_H
+
+#include <stdint.h>
+
+/* Progress counters, shared with Java through a direct ByteBuffer (see
+ * Native.java). Bumped as work is done, so a reader polling them sees how
+ * far along we are without touching the filesystem. Java sets cancel to
+ * have the operation stop early, it then fails as it would on an error.
+ * Pointers to these may be NULL when nobody is interested. */
+typedef struct {
+	volatile int64_t in;     /* bytes consumed from the input */
+	volatile int64_t out;    /* bytes written to the output */
+	volatile int64_t cancel; /* non-zero once asked to stop */
+} progress_t;
+
+static inline void progress_add(progress_t* progress, int64_t in, int64_t out) {
+	if (progress == NULL) return;
+	if (in) __atomic_fetch_add(&progress->in, in, __ATOMIC_RELAXED);
+	if (out) __atomic_fetch_add(&progress->out, out, __ATOMIC_RELAXED);
+}
+
+/* polled between chunks of work, so a cancel is seen within one of those */
+static inline int progress_cancelled(progress_t* progress) {
+	if (progress == NULL) return 0;
+	return __atomic_load_n(&progress->cancel, __ATOMIC_RELAXED) != 0;
+}
+
+#endif
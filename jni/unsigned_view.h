@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2021 Yet Another AOSP Project
+ */
+/*
+ * This file is part of OpenDelta.
+ *
+ * OpenDelta is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDelta is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenDelta. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef __UNSIGNED_VIEW_H
+#define __UNSIGNED_VIEW_H
+
+#include <stdint.h>
+#include <unistd.h>
+
+/* A store_signed ZIP is the store ZIP with MinSignAPK's whole-file
+ * signature appended as the archive comment. Its first size_store bytes
+ * are those of the store ZIP, except for the comment length that ends the
+ * EOCD record, which is 0 in the store ZIP. Reading only that prefix with
+ * the comment length zeroed gives the store ZIP without making a copy. */
+
+#define UNSIGNED_VIEW_EOCD_SIZE 22
+#define UNSIGNED_VIEW_EOCD_MAGIC 0x06054b50
+
+/* check that the file is a store ZIP of size bytes with a comment added */
+static inline int unsigned_view_check(int fd, off_t file_size, off_t size) {
+	unsigned char eocd[UNSIGNED_VIEW_EOCD_SIZE];
+
+	if ((size < UNSIGNED_VIEW_EOCD_SIZE) || (size > file_size) || (file_size - size > 0xFFFF)) return 0;
+	if (pread(fd, eocd, UNSIGNED_VIEW_EOCD_SIZE, size - UNSIGNED_VIEW_EOCD_SIZE) != UNSIGNED_VIEW_EOCD_SIZE) return 0;
+	uint32_t magic = eocd[0] | (eocd[1] << 8) | (eocd[2] << 16) | ((uint32_t)eocd[3] << 24);
+	uint32_t comment = eocd[20] | (eocd[21] << 8);
+	return (magic == UNSIGNED_VIEW_EOCD_MAGIC) && (comment == file_size - size);
+}
+
+/* buf holds length bytes of the view from offset, zero the comment length
+ * if it is in there */
+static inline void unsigned_view_patch(unsigned char* buf, off_t offset, size_t length, off_t size) {
+	off_t i;
+	for (i = size - 2; i < size; i++) {
+		if ((i >= offset) && (i < offset + (off_t)length)) buf[i - offset] = 0;
+	}
+}
+
+#endif
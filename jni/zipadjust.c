@@ -26,6 +26,14 @@
 #include <stdio.h>
 #include <errno.h>
 #include <zlib.h>
+#include <unistd.h>
+#include <pthread.h>
+#include <sys/syscall.h>
+#ifdef __ANDROID__
+#include <android/api-level.h>
+#endif
+#include <openssl/sha.h>
+#include "zipadjust.h"
 
 #pragma pack(1)
 struct local_header_struct {
@@ -109,43 +117,130 @@ static int xseekread(int fd, off_t offset, void* buf, size_t bytes) {
 	return 1;
 }
 
-static int xseekwrite(int fd, off_t offset, void* buf, size_t bytes) {
-	if (lseek(fd, offset, SEEK_SET) == (off_t)-1) return xerror("Seek failed");
-	if (write(fd, buf, bytes) != bytes) return xerror("Write failed");
+#define CHUNK (256 * 1024)
+
+/* Entries are planned up front, so each one knows where it goes in the
+ * output before any of them are written, and they can be produced in any
+ * order, by any number of threads. */
+struct zip_entry {
+	local_header_t local_header;
+	char* filename;
+	off_t offset_out;     /* local header in the output */
+	off_t offset_data_in; /* entry data in the input */
+	uint32_t size_in;
+	int inflate;
+	int done;
+};
+
+struct zip_job {
+	int fin;
+	int fout;
+	struct zip_entry* entries;
+	int count;
+	int next;
+	int failed;
+	progress_t* progress;
+	SHA256_CTX* sha;      /* hash inline, only when entries are done in order */
+	pthread_mutex_t lock;
+	pthread_cond_t cond;
+};
+
+static int xpwrite(int fd, void* buf, size_t bytes, off_t offset, SHA256_CTX* sha) {
+	size_t done = 0;
+	while (done < bytes) {
+		ssize_t w = pwrite(fd, (unsigned char*)buf + done, bytes - done, offset + done);
+		if (w <= 0) return xerror("Write failed");
+		done += w;
+	}
+	if (sha != NULL) SHA256_Update(sha, buf, bytes);
 	return 1;
 }
 
-static int xfilecopy(int fdIn, int fdOut, off_t offsetIn, off_t offsetOut, size_t bytes) {
-	if ((offsetIn != (off_t)-1) && (lseek(fdIn, offsetIn, SEEK_SET) == (off_t)-1)) return xerror("Seek failed");
-	if ((offsetOut != (off_t)-1) && (lseek(fdOut, offsetOut, SEEK_SET) == (off_t)-1)) return xerror("Seek failed");
-	
-	int CHUNK = 256 * 1024;
-	void* buf = malloc(CHUNK);
-	if (buf == NULL) return xerror("malloc failed");
+/* -1 until checked, then 1 while copy_file_range may work, 0 once it did not */
+static int kernel_copy = -1;
+
+static int kernel_copy_supported() {
+#ifdef __NR_copy_file_range
+#ifdef __ANDROID__
+	/* older releases may not allow the syscall at all, and kill us for it
+	 * instead of failing it */
+	return android_get_device_api_level() >= 34;
+#else
+	return 1;
+#endif
+#else
+	return 0;
+#endif
+}
+
+/* Copy in the kernel, no point moving bytes through user space when they
+ * are not changed or hashed on the way. Returns the number of bytes that
+ * are left, for the caller to copy itself, or -1 on error. */
+static ssize_t xcopyrange(int fdIn, int fdOut, off_t* offsetIn, off_t* offsetOut, size_t bytes, progress_t* progress) {
+#ifdef __NR_copy_file_range
+	int supported = __atomic_load_n(&kernel_copy, __ATOMIC_RELAXED);
+	if (supported < 0) {
+		supported = kernel_copy_supported();
+		__atomic_store_n(&kernel_copy, supported, __ATOMIC_RELAXED);
+	}
+	while (supported && (bytes > 0)) {
+		if (progress_cancelled(progress)) {
+			xerror("Cancelled");
+			return -1;
+		}
+		loff_t in = *offsetIn;
+		loff_t out = *offsetOut;
+		ssize_t r = syscall(__NR_copy_file_range, fdIn, &in, fdOut, &out, (bytes < 16 * CHUNK) ? bytes : 16 * CHUNK, 0);
+		if (r < 0) {
+			if ((errno == ENOSYS) || (errno == EXDEV) || (errno == EINVAL) || (errno == EOPNOTSUPP) || (errno == EPERM)) {
+				/* not for these files, copy the rest by hand */
+				__atomic_store_n(&kernel_copy, 0, __ATOMIC_RELAXED);
+				break;
+			}
+			xerror("Copy failed");
+			return -1;
+		}
+		if (r == 0) {
+			xerror("Read failed");
+			return -1;
+		}
+		progress_add(progress, r, r);
+		*offsetIn += r;
+		*offsetOut += r;
+		bytes -= r;
+	}
+#endif
+	return bytes;
+}
+
+static int xfilecopy(int fdIn, int fdOut, off_t offsetIn, off_t offsetOut, size_t bytes, unsigned char* buf, progress_t* progress, SHA256_CTX* sha) {
 	size_t left = bytes;
+	if (sha == NULL) {
+		ssize_t r = xcopyrange(fdIn, fdOut, &offsetIn, &offsetOut, bytes, progress);
+		if (r < 0) return 0;
+		left = r;
+	}
 	while (left > 0) {
+		if (progress_cancelled(progress)) return xerror("Cancelled");
 		size_t wanted = (left < CHUNK) ? left : CHUNK;
-		size_t r = read(fdIn, buf, wanted);
+		ssize_t r = pread(fdIn, buf, wanted, offsetIn);
 		if (r <= 0) return xerror("Read failed");
-		if (write(fdOut, buf, r) != r) return xerror("Write failed");
+		if (!xpwrite(fdOut, buf, r, offsetOut, sha)) return 0;
+		progress_add(progress, r, r);
+		offsetIn += r;
+		offsetOut += r;
 		left -= r;
 	}
-	free(buf);
 	
 	return 1;
 }
 
-static int xdecompress(int fdIn, int fdOut, off_t offsetIn, off_t offsetOut, size_t bytes) {
-	if ((offsetIn != (off_t)-1) && (lseek(fdIn, offsetIn, SEEK_SET) == (off_t)-1)) return xerror("Seek failed");
-	if ((offsetOut != (off_t)-1) && (lseek(fdOut, offsetOut, SEEK_SET) == (off_t)-1)) return xerror("Seek failed");
-	
-	int CHUNK = 256 * 1024;
-	
+/* inflate the sizeIn bytes at offsetIn to exactly sizeOut bytes at offsetOut */
+static int xdecompress(int fdIn, int fdOut, off_t offsetIn, size_t sizeIn, off_t offsetOut, size_t sizeOut, unsigned char* in, unsigned char* out, progress_t* progress, SHA256_CTX* sha) {
 	int ret;
 	unsigned have;
 	z_stream strm;
-	unsigned char in[CHUNK];
-	unsigned char out[CHUNK];
+	off_t endOut = offsetOut + sizeOut;
 	
 	strm.zalloc = Z_NULL;
 	strm.zfree = Z_NULL;
@@ -156,20 +251,35 @@ static int xdecompress(int fdIn, int fdOut, off_t offsetIn, off_t offsetOut, siz
 	if (ret != Z_OK) return xerror("ret != Z_OK");
 	
 	do {
-		strm.avail_in = read(fdIn, in, CHUNK);
-		if (strm.avail_in < 0) {
+		if (progress_cancelled(progress)) {
+			(void)inflateEnd(&strm);
+			return xerror("Cancelled");
+		}
+		/* only this entry's bytes, the next local header follows */
+		if (sizeIn == 0) {
+			(void)inflateEnd(&strm);
+			return xerror("Entry truncated");
+		}
+		ssize_t r = pread(fdIn, in, (sizeIn < CHUNK) ? sizeIn : CHUNK, offsetIn);
+		if (r <= 0) {
 			(void)inflateEnd(&strm);
 			return xerror("Read failed");
 		}
-		if (strm.avail_in == 0) break;
+		strm.avail_in = r;
 		strm.next_in = in;
+		offsetIn += r;
+		sizeIn -= r;
+		progress_add(progress, r, 0);
 		
 		do {
 			strm.avail_out = CHUNK;
 			strm.next_out = out;
 			
 			ret = inflate(&strm, Z_NO_FLUSH);
-			if (ret == Z_STREAM_ERROR) return xerror("Stream error");
+			if (ret == Z_STREAM_ERROR) {
+				(void)inflateEnd(&strm);
+				return xerror("Stream error");
+			}
 			switch (ret) {
 			case Z_NEED_DICT:
 				ret = Z_DATA_ERROR;
@@ -180,138 +290,316 @@ static int xdecompress(int fdIn, int fdOut, off_t offsetIn, off_t offsetOut, siz
 			}
 			
 			have = CHUNK - strm.avail_out;
-			if (write(fdOut, out, have) != have) {
+			/* the next entry was planned right behind this one */
+			if (offsetOut + have > endOut) {
+				(void)inflateEnd(&strm);
+				return xerror("Entry larger than its uncompressed size");
+			}
+			if (!xpwrite(fdOut, out, have, offsetOut, sha)) {
 				(void)inflateEnd(&strm);
-				return xerror("Write failed");
+				return 0;
 			}
+			offsetOut += have;
+			progress_add(progress, 0, have);
 		} while (strm.avail_out == 0);
 	} while (ret != Z_STREAM_END);
 	(void)inflateEnd(&strm);
-	
-	return ret == Z_STREAM_END ? 1 : 0;
+
+	/* short would leave a hole in the planned output */
+	if (offsetOut != endOut) return xerror("Entry smaller than its uncompressed size");
+	return 1;
 }
 
-int zipadjust(char* filenameIn, char* filenameOut, int decompress) {
-	int ok = 0;
-	
-	int fin = open(filenameIn, O_RDONLY);
-	if (fin > 0) {
-		unsigned int size = lseek(fin, 0, SEEK_END);
-		lseek(fin, 0, SEEK_SET);
-		printf("%d bytes\n", size);
-
-		char filename[1024];
-
-		central_footer_t central_footer;
-		uint32_t central_directory_in_position = 0;
-		uint32_t central_directory_in_size = 0;
-		uint32_t central_directory_out_size = 0;
-
-		int i;
-		for (i = size - 4; i >= 0; i--) {
-			uint32_t magic = 0;
-			if (!xseekread(fin, i, &magic, sizeof(uint32_t))) return 0;
-			if (magic == MAGIC_CENTRAL_FOOTER) {
-				printf("central footer @ %08X\n", i);
-				if (!xseekread(fin, i, &central_footer, sizeof(central_footer_t))) return 0;
-
-				central_header_t central_header;
-				if (!xseekread(fin, central_footer.central_directory_offset, &central_header, sizeof(central_header_t))) return 0;
-				if ( central_header.signature == MAGIC_CENTRAL_HEADER ) {
-					central_directory_in_position = central_footer.central_directory_offset;
-					central_directory_in_size = size - central_footer.central_directory_offset;
-					printf("central header @ %08X (%d)\n", central_footer.central_directory_offset, central_footer.central_directory_size);
-					break;
-				}
+static int zipadjust_entry(struct zip_job* job, struct zip_entry* entry, unsigned char* in, unsigned char* out) {
+	local_header_t* local_header = &entry->local_header;
+	off_t offset = entry->offset_out;
+
+	if (progress_cancelled(job->progress)) return xerror("Cancelled");
+	if (!xpwrite(job->fout, local_header, sizeof(local_header_t), offset, job->sha)) return 0;
+	offset += sizeof(local_header_t);
+	if (!xpwrite(job->fout, entry->filename, local_header->length_filename, offset, job->sha)) return 0;
+	offset += local_header->length_filename;
+	progress_add(job->progress, 0, sizeof(local_header_t) + local_header->length_filename);
+
+	if (entry->inflate) {
+		return xdecompress(job->fin, job->fout, entry->offset_data_in, entry->size_in, offset, local_header->size_compressed, in, out, job->progress, job->sha);
+	} else {
+		return xfilecopy(job->fin, job->fout, entry->offset_data_in, offset, entry->size_in, in, job->progress, job->sha);
+	}
+}
+
+static void* zipadjust_worker(void* arg) {
+	struct zip_job* job = (struct zip_job*)arg;
+	unsigned char* in = (unsigned char*)malloc(CHUNK);
+	unsigned char* out = (unsigned char*)malloc(CHUNK);
+	if ((in == NULL) || (out == NULL)) {
+		xerror("malloc failed");
+		__atomic_store_n(&job->failed, 1, __ATOMIC_RELAXED);
+	}
+
+	while (!__atomic_load_n(&job->failed, __ATOMIC_RELAXED)) {
+		int i = __atomic_fetch_add(&job->next, 1, __ATOMIC_RELAXED);
+		if (i >= job->count) break;
+
+		int ok = zipadjust_entry(job, &job->entries[i], in, out);
+
+		pthread_mutex_lock(&job->lock);
+		if (ok) job->entries[i].done = 1;
+		else __atomic_store_n(&job->failed, 1, __ATOMIC_RELAXED);
+		pthread_cond_broadcast(&job->cond);
+		pthread_mutex_unlock(&job->lock);
+	}
+
+	pthread_mutex_lock(&job->lock);
+	pthread_cond_broadcast(&job->cond);
+	pthread_mutex_unlock(&job->lock);
+
+	free(in);
+	free(out);
+	return NULL;
+}
+
+/* hash the output in order, reading back each entry once it is done.
+ * It was only just written, so this is served from the page cache */
+static int zipadjust_hash(struct zip_job* job, SHA256_CTX* sha) {
+	unsigned char* buf = (unsigned char*)malloc(CHUNK);
+	if (buf == NULL) return xerror("malloc failed");
+
+	int i;
+	for (i = 0; i < job->count; i++) {
+		struct zip_entry* entry = &job->entries[i];
+
+		pthread_mutex_lock(&job->lock);
+		while (!entry->done && !__atomic_load_n(&job->failed, __ATOMIC_RELAXED)) pthread_cond_wait(&job->cond, &job->lock);
+		pthread_mutex_unlock(&job->lock);
+		if (!entry->done) break;
+
+		SHA256_Update(sha, &entry->local_header, sizeof(local_header_t));
+		SHA256_Update(sha, entry->filename, entry->local_header.length_filename);
+		off_t offset = entry->offset_out + sizeof(local_header_t) + entry->local_header.length_filename;
+		size_t left = entry->local_header.size_compressed;
+		while (left > 0) {
+			ssize_t r = pread(job->fout, buf, (left < CHUNK) ? left : CHUNK, offset);
+			if (r <= 0) {
+				__atomic_store_n(&job->failed, 1, __ATOMIC_RELAXED);
+				xerror("Read failed");
+				break;
 			}
+			SHA256_Update(sha, buf, r);
+			offset += r;
+			left -= r;
 		}
+		if (left > 0) break;
+	}
+
+	free(buf);
+	return (i == job->count);
+}
 
-		if (central_directory_in_position == 0) return 0;
-
-		unsigned char* central_directory_in = (unsigned char*)malloc(central_directory_in_size);
-		unsigned char* central_directory_out = (unsigned char*)malloc(central_directory_in_size);
-		if (!xseekread(fin, central_directory_in_position, central_directory_in, central_directory_in_size)) return 0;
-		memset(central_directory_out, 0, central_directory_in_size);
-
-		unlink(filenameOut);
-		int fout = open(filenameOut, O_CREAT | O_WRONLY, 0644);
-		if (fout > 0) {
-
-			uintptr_t central_directory_in_index = 0;
-			uintptr_t central_directory_out_index = 0;
-
-			central_header_t* central_header = NULL;
-			uint32_t out_index = 0;
-
-			while (1) {
-				central_header = (central_header_t*)&central_directory_in[central_directory_in_index];
-				if (central_header->signature != MAGIC_CENTRAL_HEADER) break;
-
-				filename[central_header->length_filename] = (char)0;
-				memcpy(filename, &central_directory_in[central_directory_in_index + sizeof(central_header_t)], central_header->length_filename);
-				printf("%s (%d --> %d) [%08X] (%d)\n", filename, central_header->size_uncompressed, central_header->size_compressed, central_header->crc32, central_header->length_extra + central_header->length_comment);
-
-				local_header_t local_header;
-				if (!xseekread(fin, central_header->offset, &local_header, sizeof(local_header_t))) return 0;
-
-				// save and update to next index before we clobber the data
-				uint16_t compression_method_old = central_header->compression_method;
-				uint32_t size_compressed_old = central_header->size_compressed;
-				uint32_t offset_old = central_header->offset;
-				uint32_t length_extra_old = central_header->length_extra;
-				central_directory_in_index += sizeof(central_header_t) + central_header->length_filename + central_header->length_extra + central_header->length_comment;
-
-				// copying, rewriting, and correcting local and central headers so all the information matches, and no data descriptors are necessary
-				central_header->offset = out_index;
-				central_header->flags = central_header->flags & !8;
-				if (decompress && (compression_method_old == 8)) {
-					central_header->compression_method = 0;
-					central_header->size_compressed = central_header->size_uncompressed;
-				}
-				central_header->length_extra = 0;
-				central_header->length_comment = 0;
-				local_header.compression_method = central_header->compression_method;
-				local_header.flags = central_header->flags;
-				local_header.crc32 = central_header->crc32;
-				local_header.size_uncompressed = central_header->size_uncompressed;
-				local_header.size_compressed = central_header->size_compressed;
-				local_header.length_extra = 0;
-
-				if (!xseekwrite(fout, out_index, &local_header, sizeof(local_header_t))) return 0;
-				out_index += sizeof(local_header_t);
-				if (!xseekwrite(fout, out_index, &filename[0], central_header->length_filename)) return 0;
-				out_index += central_header->length_filename;
-
-				if (decompress && (compression_method_old == 8)) {
-					if (!xdecompress(fin, fout, offset_old + sizeof(local_header_t) + central_header->length_filename + length_extra_old, out_index, size_compressed_old)) return 0;
-				} else {
-					if (!xfilecopy(fin, fout, offset_old + sizeof(local_header_t) + central_header->length_filename + length_extra_old, out_index, size_compressed_old)) return 0;
-				}
-				out_index += local_header.size_compressed;
-
-				memcpy(&central_directory_out[central_directory_out_index], central_header, sizeof(central_header_t) + central_header->length_filename);
-				central_directory_out_index += sizeof(central_header_t) + central_header->length_filename;
+/* produce all entries, on threads workers (including the calling thread) */
+static int zipadjust_run(struct zip_job* job, int threads, SHA256_CTX* sha) {
+	pthread_t* workers = NULL;
+	int started = 0;
+	int ok = 1;
+	int i;
+
+	if (threads > job->count) threads = job->count;
+	if (threads > 1) workers = (pthread_t*)malloc(threads * sizeof(pthread_t));
+
+	/* the worker signals through these even when it runs inline */
+	pthread_mutex_init(&job->lock, NULL);
+	pthread_cond_init(&job->cond, NULL);
+
+	if (workers == NULL) {
+		/* entries are done in order, so they can be hashed inline */
+		job->sha = sha;
+		zipadjust_worker(job);
+		pthread_cond_destroy(&job->cond);
+		pthread_mutex_destroy(&job->lock);
+		return !job->failed;
+	}
+
+	for (i = 0; i < threads; i++) {
+		if (pthread_create(&workers[started], NULL, zipadjust_worker, job) == 0) started++;
+	}
+	if (started == 0) {
+		job->sha = sha;
+		zipadjust_worker(job);
+	} else if (sha != NULL) {
+		if (!zipadjust_hash(job, sha)) ok = 0;
+	}
+	for (i = 0; i < started; i++) pthread_join(workers[i], NULL);
+	pthread_cond_destroy(&job->cond);
+	pthread_mutex_destroy(&job->lock);
+	free(workers);
+
+	return ok && !job->failed;
+}
+
+int zipadjust(char* filenameIn, char* filenameOut, int decompress, int threads, progress_t* progress, unsigned char* sha256) {
+	int ok = 0;
+	SHA256_CTX ctx;
+	SHA256_CTX* sha = NULL;
+	if (sha256 != NULL) {
+		SHA256_Init(&ctx);
+		sha = &ctx;
+	}
+
+	/* every exit goes through out, which releases whatever was set up */
+	int fin = -1;
+	int fout = -1;
+	unsigned char* central_directory_in = NULL;
+	unsigned char* central_directory_out = NULL;
+	struct zip_entry* entries = NULL;
+
+	fin = open(filenameIn, O_RDONLY);
+	if (fin < 0) goto out;
+
+	unsigned int size = lseek(fin, 0, SEEK_END);
+	lseek(fin, 0, SEEK_SET);
+	printf("%d bytes\n", size);
+
+	char filename[1024];
+
+	central_footer_t central_footer;
+	uint32_t central_directory_in_position = 0;
+	uint32_t central_directory_in_size = 0;
+	uint32_t central_directory_out_size = 0;
+
+	int i;
+	for (i = size - 4; i >= 0; i--) {
+		uint32_t magic = 0;
+		if (!xseekread(fin, i, &magic, sizeof(uint32_t))) goto out;
+		if (magic == MAGIC_CENTRAL_FOOTER) {
+			printf("central footer @ %08X\n", i);
+			if (!xseekread(fin, i, &central_footer, sizeof(central_footer_t))) goto out;
+
+			central_header_t central_header;
+			if (!xseekread(fin, central_footer.central_directory_offset, &central_header, sizeof(central_header_t))) goto out;
+			if ( central_header.signature == MAGIC_CENTRAL_HEADER ) {
+				central_directory_in_position = central_footer.central_directory_offset;
+				central_directory_in_size = size - central_footer.central_directory_offset;
+				printf("central header @ %08X (%d)\n", central_footer.central_directory_offset, central_footer.central_directory_size);
+				break;
 			}
-			
-			central_directory_out_size = central_directory_out_index;
-			central_footer.central_directory_size = central_directory_out_size;
-			central_footer.central_directory_offset = out_index;
-			central_footer.length_comment = 0;
-			if (!xseekwrite(fout, out_index, central_directory_out, central_directory_out_size)) return 0;
-			out_index += central_directory_out_size;
-			if (!xseekwrite(fout, out_index, &central_footer, sizeof(central_footer_t))) return 0;
-
-			printf("central header @ %08X (%d)\n", central_footer.central_directory_offset, central_footer.central_directory_size);
-			printf("central footer @ %08X\n", out_index);
-
-			close(fout);
-			ok = 1;
 		}
+	}
+
+	if (central_directory_in_position == 0) goto out;
 
-		free(central_directory_in);
-		free(central_directory_out);
-		close(fin);
+	central_directory_in = (unsigned char*)malloc(central_directory_in_size);
+	central_directory_out = (unsigned char*)malloc(central_directory_in_size);
+	if ((central_directory_in == NULL) || (central_directory_out == NULL)) {
+		xerror("malloc failed");
+		goto out;
 	}
-	
+	if (!xseekread(fin, central_directory_in_position, central_directory_in, central_directory_in_size)) goto out;
+	memset(central_directory_out, 0, central_directory_in_size);
+
+	/* every entry takes at least a central header */
+	int entries_max = central_directory_in_size / sizeof(central_header_t);
+	entries = (struct zip_entry*)calloc(entries_max + 1, sizeof(struct zip_entry));
+	if (entries == NULL) {
+		xerror("malloc failed");
+		goto out;
+	}
+
+	unlink(filenameOut);
+	fout = open(filenameOut, O_CREAT | O_RDWR, 0644);
+	if (fout < 0) goto out;
+
+	uintptr_t central_directory_in_index = 0;
+	uintptr_t central_directory_out_index = 0;
+
+	central_header_t* central_header = NULL;
+	uint32_t out_index = 0;
+	int count = 0;
+
+	/* plan: work out every entry's headers and output offset */
+	while (count < entries_max) {
+		central_header = (central_header_t*)&central_directory_in[central_directory_in_index];
+		if (central_header->signature != MAGIC_CENTRAL_HEADER) break;
+
+		filename[central_header->length_filename] = (char)0;
+		memcpy(filename, &central_directory_in[central_directory_in_index + sizeof(central_header_t)], central_header->length_filename);
+		printf("%s (%d --> %d) [%08X] (%d)\n", filename, central_header->size_uncompressed, central_header->size_compressed, central_header->crc32, central_header->length_extra + central_header->length_comment);
+
+		struct zip_entry* entry = &entries[count++];
+		local_header_t local_header;
+		if (!xseekread(fin, central_header->offset, &local_header, sizeof(local_header_t))) goto out;
+
+		// save and update to next index before we clobber the data
+		uint16_t compression_method_old = central_header->compression_method;
+		uint32_t size_compressed_old = central_header->size_compressed;
+		uint32_t offset_old = central_header->offset;
+		uint32_t length_extra_old = central_header->length_extra;
+		central_directory_in_index += sizeof(central_header_t) + central_header->length_filename + central_header->length_extra + central_header->length_comment;
+
+		// copying, rewriting, and correcting local and central headers so all the information matches, and no data descriptors are necessary
+		central_header->offset = out_index;
+		central_header->flags = central_header->flags & !8;
+		if (decompress && (compression_method_old == 8)) {
+			central_header->compression_method = 0;
+			central_header->size_compressed = central_header->size_uncompressed;
+		}
+		central_header->length_extra = 0;
+		central_header->length_comment = 0;
+		local_header.compression_method = central_header->compression_method;
+		local_header.flags = central_header->flags;
+		local_header.crc32 = central_header->crc32;
+		local_header.size_uncompressed = central_header->size_uncompressed;
+		local_header.size_compressed = central_header->size_compressed;
+		local_header.length_extra = 0;
+
+		memcpy(&central_directory_out[central_directory_out_index], central_header, sizeof(central_header_t) + central_header->length_filename);
+
+		entry->local_header = local_header;
+		entry->filename = (char*)&central_directory_out[central_directory_out_index + sizeof(central_header_t)];
+		entry->offset_out = out_index;
+		entry->offset_data_in = offset_old + sizeof(local_header_t) + central_header->length_filename + length_extra_old;
+		entry->size_in = size_compressed_old;
+		entry->inflate = decompress && (compression_method_old == 8);
+
+		out_index += sizeof(local_header_t) + central_header->length_filename + local_header.size_compressed;
+		central_directory_out_index += sizeof(central_header_t) + central_header->length_filename;
+	}
+
+	/* produce: write all entries */
+	struct zip_job job;
+	memset(&job, 0, sizeof(job));
+	job.fin = fin;
+	job.fout = fout;
+	job.entries = entries;
+	job.count = count;
+	job.progress = progress;
+	if (!zipadjust_run(&job, threads, sha)) goto out;
+
+	central_directory_out_size = central_directory_out_index;
+	central_footer.central_directory_size = central_directory_out_size;
+	central_footer.central_directory_offset = out_index;
+	central_footer.length_comment = 0;
+	if (!xpwrite(fout, central_directory_out, central_directory_out_size, out_index, sha) ||
+			!xpwrite(fout, &central_footer, sizeof(central_footer_t), out_index + central_directory_out_size, sha)) goto out;
+	out_index += central_directory_out_size;
+	progress_add(progress, 0, central_directory_out_size + sizeof(central_footer_t));
+
+	printf("central header @ %08X (%d)\n", central_footer.central_directory_offset, central_footer.central_directory_size);
+	printf("central footer @ %08X\n", out_index);
+
+	ok = 1;
+
+out:
+	/* on failure, including a cancel, don't leave a partial output */
+	if (fout >= 0) {
+		if (close(fout) != 0) ok = 0;
+		if (!ok) unlink(filenameOut);
+	}
+	if (ok && (sha != NULL)) SHA256_Final(sha256, sha);
+
+	free(entries);
+	free(central_directory_in);
+	free(central_directory_out);
+	if (fin >= 0) close(fin);
+
 	return ok;
 }
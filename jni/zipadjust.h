@@ -22,6 +22,11 @@
 #ifndef __ZIPADJUST_H
 #define __ZIPADJUST_H
 
-int zipadjust(char* filenameIn, char* filenameOut, int decompress);
+#include "progress.h"
+
+/* Entries are written by up to threads threads at once, the output is the
+ * same regardless. sha256, if not NULL, receives the SHA-256 of the output
+ * (32 bytes) on success */
+int zipadjust(char* filenameIn, char* filenameOut, int decompress, int threads, progress_t* progress, unsigned char* sha256);
 
 #endif
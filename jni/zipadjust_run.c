@@ -21,15 +21,17 @@
 
 #include <stdio.h>
 #include <string.h>
+#include <unistd.h>
 #include "zipadjust.h"
 
 int main(int argc, char *argv[]) {
+	int threads = sysconf(_SC_NPROCESSORS_ONLN);
 	if (argc >= 3) {
 		if ((argc >= 4) && (strcmp(argv[1], "--decompress") == 0)) {
-			zipadjust(argv[2], argv[3], 1);
+			zipadjust(argv[2], argv[3], 1, threads, NULL, NULL);
 			return 0;
 		} else {
-			zipadjust(argv[1], argv[2], 0);
+			zipadjust(argv[1], argv[2], 0, threads, NULL, NULL);
 			return 0;
 		}
 	}
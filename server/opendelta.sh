@@ -31,6 +31,10 @@ PATH_LAST=$HOME/delta/last/$DEVICE
 KEY_X509=$HOME/.keys/platform.x509.pem
 KEY_PK8=$HOME/.keys/platform.pk8
 
+# Also publish the update as a segmented delta, cut into pieces of this many
+# bytes of output that clients can decode at the same time. Empty to skip
+SEGMENT_SIZE=$((64 * 1024 * 1024))
+
 # ------ PROCESS ------
 
 getFileName() {
@@ -46,10 +50,45 @@ getFileMD5() {
 	for T in $TEMP; do echo $T; break; done
 }
 
+getFileSHA256() {
+	TEMP=$(sha256sum -b $1)
+	for T in $TEMP; do echo $T; break; done
+}
+
 getFileSize() {
 	echo $(stat --print "%s" $1)
 }
 
+# write $1 as 8 bytes little endian
+le64() {
+	local V=$1
+	local I
+	for ((I = 0; I < 8; I++)); do
+		printf "\\$(printf %03o $(( (V >> (8 * I)) & 255 )))"
+	done
+}
+
+# segmented delta from $1 to $2 in $3, see dedelta_segmented in jni/delta.h
+makeSegmented() {
+	local SIZE=$(getFileSize $2)
+	local COUNT=$(( (SIZE + SEGMENT_SIZE - 1) / SEGMENT_SIZE ))
+	local BUFF=$(nextPowerOf2 $(getFileSize $1))
+	local I
+	printf "ODSEGS01" > $3
+	le64 $COUNT >> $3
+	for ((I = 0; I < COUNT; I++)); do
+		dd if=$2 of=work/segment bs=$SEGMENT_SIZE skip=$I count=1 2>/dev/null
+		$BIN_XDELTA -B ${BUFF} -9evfS none -s $1 work/segment work/segment.$I
+		le64 $(getFileSize work/segment) >> $3
+		le64 $(getFileSize work/segment.$I) >> $3
+	done
+	for ((I = 0; I < COUNT; I++)); do
+		cat work/segment.$I >> $3
+		rm work/segment.$I
+	done
+	rm work/segment
+}
+
 nextPowerOf2() {
     local v=$1;
     ((v -= 1));
@@ -96,6 +135,9 @@ SRC_BUFF=$(nextPowerOf2 $(getFileSize work/current.zip));
 $BIN_XDELTA -B ${SRC_BUFF} -9evfS none -s work/last.zip work/current.zip out/$FILE_LAST_BASE.update
 SRC_BUFF=$(nextPowerOf2 $(getFileSize work/current_signed.zip));
 $BIN_XDELTA -B ${SRC_BUFF} -9evfS none -s work/current.zip work/current_signed.zip out/$FILE_LAST_BASE.sign
+if [ "$SEGMENT_SIZE" != "" ]; then
+	makeSegmented work/last.zip work/current.zip out/$FILE_LAST_BASE.segs
+fi
 
 MD5_CURRENT=$(getFileMD5 $PATH_CURRENT/$FILE_CURRENT)
 MD5_CURRENT_STORE=$(getFileMD5 work/current.zip)
@@ -135,6 +177,18 @@ echo "      \"size_applied\": $SIZE_CURRENT_STORE," >> $DELTA
 echo "      \"md5\": \"$MD5_UPDATE\"," >> $DELTA
 echo "      \"md5_applied\": \"$MD5_CURRENT_STORE\"" >> $DELTA
 echo "  }," >> $DELTA
+if [ "$SEGMENT_SIZE" != "" ]; then
+	SIZE_SEGS=$(getFileSize out/$FILE_LAST_BASE.segs)
+	SHA256_SEGS=$(getFileSHA256 out/$FILE_LAST_BASE.segs)
+	SHA256_CURRENT_STORE=$(getFileSHA256 work/current.zip)
+	echo "  \"update_segmented\": {" >> $DELTA
+	echo "      \"name\": \"$FILE_LAST_BASE.segs\"," >> $DELTA
+	echo "      \"size\": $SIZE_SEGS," >> $DELTA
+	echo "      \"size_applied\": $SIZE_CURRENT_STORE," >> $DELTA
+	echo "      \"sha256\": \"$SHA256_SEGS\"," >> $DELTA
+	echo "      \"sha256_applied\": \"$SHA256_CURRENT_STORE\"" >> $DELTA
+	echo "  }," >> $DELTA
+fi
 echo "  \"signature\": {" >> $DELTA
 echo "      \"name\": \"$FILE_LAST_BASE.sign\"," >> $DELTA
 echo "      \"size\": $SIZE_SIGN," >> $DELTA
@@ -157,6 +211,33 @@ mkdir publish >/dev/null 2>/dev/null
 mkdir publish/$DEVICE >/dev/null 2>/dev/null
 cp out/* publish/$DEVICE/.
 
+# Chain manifest: every published (and revoked) delta in one file, so
+# clients can resolve their whole chain with a single request. Clients
+# take it as complete when it reaches the latest build they know of, and
+# only look for deltas past its end otherwise. Revoking a delta by renaming
+# it to .delta_revoked also requires regenerating this.
+
+CHAIN=publish/$DEVICE/chain.json
+
+echo "{" > $CHAIN.tmp
+echo "  \"version\": 1," >> $CHAIN.tmp
+echo "  \"deltas\": [" >> $CHAIN.tmp
+SEPARATOR=""
+for F in publish/$DEVICE/*.delta publish/$DEVICE/*.delta_revoked; do
+	if [ ! -f "$F" ]; then continue; fi
+	REVOKED=false
+	if [ "${F##*.}" == "delta_revoked" ]; then REVOKED=true; fi
+	echo "$SEPARATOR    {" >> $CHAIN.tmp
+	echo "      \"revoked\": $REVOKED," >> $CHAIN.tmp
+	echo "      \"delta\":" >> $CHAIN.tmp
+	cat $F >> $CHAIN.tmp
+	echo "    }" >> $CHAIN.tmp
+	SEPARATOR=","
+done
+echo "  ]" >> $CHAIN.tmp
+echo "}" >> $CHAIN.tmp
+mv $CHAIN.tmp $CHAIN
+
 rm -rf work
 rm -rf out
 
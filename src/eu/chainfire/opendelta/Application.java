@@ -21,10 +21,31 @@
 
 package eu.chainfire.opendelta;
 
+import java.security.NoSuchAlgorithmException;
+
+import javax.net.ssl.SSLContext;
+
 public class Application extends android.app.Application {
+    // Connection reuse for every HttpURLConnection in this process (see
+    // HttpClient). These are process wide, so they are set here once before
+    // anything connects. Enough connections for a segmented download plus
+    // concurrent delta downloads, TLS sessions resumable for an hour
+    private static final int HTTP_MAX_CONNECTIONS = 8;
+    private static final int TLS_SESSION_TIMEOUT = 60 * 60;
+
     @Override
     public void onCreate() {
         super.onCreate();
         Logger.setDebugLogging(getResources().getBoolean(R.bool.debug_output));
+
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(HTTP_MAX_CONNECTIONS));
+        try {
+            SSLContext.getDefault().getClientSessionContext()
+                    .setSessionTimeout(TLS_SESSION_TIMEOUT);
+        } catch (NoSuchAlgorithmException e) {
+            // Keep the platform's session timeout
+            Logger.ex(e);
+        }
     }
 }
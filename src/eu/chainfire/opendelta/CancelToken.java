@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2021 Yet Another AOSP Project
+ */
+/*
+ * This file is part of OpenDelta.
+ *
+ * OpenDelta is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDelta is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenDelta. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.opendelta;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * Stop request for one update run, visible to every thread working on it.
+ * Java code polls isCancelled(). Native calls get their progress buffer
+ * from newProgress(), cancel() flags every buffer still in use, so a long
+ * zipadjust or dedelta stops within one chunk of work rather than only
+ * once it returns.
+ */
+public class CancelToken {
+    private final AtomicBoolean cancelled = new AtomicBoolean(false);
+    // ByteBuffer equality is by content, these must be told apart by identity
+    private final Set<ByteBuffer> progress = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    public boolean isCancelled() {
+        return cancelled.get();
+    }
+
+    public synchronized void cancel() {
+        if (cancelled.getAndSet(true))
+            return;
+        for (ByteBuffer buffer : progress)
+            Native.cancelProgress(buffer);
+    }
+
+    // A progress buffer for a native call, hand it back with release()
+    public synchronized ByteBuffer newProgress() {
+        ByteBuffer buffer = Native.newProgress();
+        if (cancelled.get())
+            Native.cancelProgress(buffer);
+        progress.add(buffer);
+        return buffer;
+    }
+
+    public synchronized void release(ByteBuffer buffer) {
+        progress.remove(buffer);
+    }
+}
@@ -56,6 +56,16 @@ public class Config {
     private final String urlBaseFullSum;
     private final String urlBaseSuffix;
     private final boolean applySignature;
+    private final boolean applyMerge;
+    private final boolean applySegmented;
+    private final int hashCacheReverifyHours;
+    private final int hashConcurrency;
+    private final boolean downloadResume;
+    private final int downloadSegmentsMax;
+    private final int downloadConcurrency;
+    private final int deltaChainConcurrency;
+    private final boolean downloadPipeline;
+    private final boolean downloadStream;
     private final boolean injectSignatureEnable;
     private final String injectSignatureKeys;
     private final boolean secureModeEnable;
@@ -96,6 +106,16 @@ public class Config {
                 res.getString(R.string.url_base_full_sum), propertyDevice);
         urlBaseSuffix = res.getString(R.string.url_base_suffix);
         applySignature = res.getBoolean(R.bool.apply_signature);
+        applyMerge = res.getBoolean(R.bool.apply_merge);
+        applySegmented = res.getBoolean(R.bool.apply_segmented);
+        hashCacheReverifyHours = res.getInteger(R.integer.hash_cache_reverify_hours);
+        hashConcurrency = res.getInteger(R.integer.hash_concurrency);
+        downloadResume = res.getBoolean(R.bool.download_resume);
+        downloadSegmentsMax = res.getInteger(R.integer.download_segments_max);
+        downloadConcurrency = res.getInteger(R.integer.download_concurrency);
+        deltaChainConcurrency = res.getInteger(R.integer.delta_chain_concurrency);
+        downloadPipeline = res.getBoolean(R.bool.download_pipeline);
+        downloadStream = res.getBoolean(R.bool.download_stream);
         injectSignatureEnable = res
                 .getBoolean(R.bool.inject_signature_enable);
         injectSignatureKeys = res.getString(R.string.inject_signature_keys);
@@ -137,6 +157,16 @@ public class Config {
         Logger.d("url_base_full_sum: %s", urlBaseFullSum);
         Logger.d("url_base_json: %s", urlBaseJson);
         Logger.d("apply_signature: %d", applySignature ? 1 : 0);
+        Logger.d("apply_merge: %d", applyMerge ? 1 : 0);
+        Logger.d("apply_segmented: %d", applySegmented ? 1 : 0);
+        Logger.d("hash_cache_reverify_hours: %d", hashCacheReverifyHours);
+        Logger.d("hash_concurrency: %d", hashConcurrency);
+        Logger.d("download_resume: %d", downloadResume ? 1 : 0);
+        Logger.d("download_segments_max: %d", downloadSegmentsMax);
+        Logger.d("download_concurrency: %d", downloadConcurrency);
+        Logger.d("delta_chain_concurrency: %d", deltaChainConcurrency);
+        Logger.d("download_pipeline: %d", downloadPipeline ? 1 : 0);
+        Logger.d("download_stream: %d", downloadStream ? 1 : 0);
         Logger.d("inject_signature_enable: %d", injectSignatureEnable ? 1 : 0);
         Logger.d("inject_signature_keys: %s", injectSignatureKeys);
         Logger.d("secure_mode_enable: %d", secureModeEnable ? 1 : 0);
@@ -209,6 +239,46 @@ public class Config {
         return applySignature;
     }
 
+    public boolean getApplyMerge() {
+        return applyMerge;
+    }
+
+    public boolean getApplySegmented() {
+        return applySegmented;
+    }
+
+    public long getHashCacheReverifyMs() {
+        return hashCacheReverifyHours * 3600000L;
+    }
+
+    public int getHashConcurrency() {
+        return hashConcurrency;
+    }
+
+    public boolean getDownloadResume() {
+        return downloadResume;
+    }
+
+    public int getDownloadSegmentsMax() {
+        return downloadSegmentsMax;
+    }
+
+    public int getDownloadConcurrency() {
+        return downloadConcurrency;
+    }
+
+    public int getDeltaChainConcurrency() {
+        return deltaChainConcurrency;
+    }
+
+    public boolean getDownloadPipeline() {
+        return downloadPipeline;
+    }
+
+    public boolean getDownloadStream() {
+        return downloadStream;
+    }
+
     public boolean getInjectSignatureEnable() {
         // If we have full secure mode, let signature depend on secure mode
         // setting. If not, let signature depend on config setting only
@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2021 Yet Another AOSP Project
+ */
+/*
+ * This file is part of OpenDelta.
+ *
+ * OpenDelta is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDelta is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenDelta. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.opendelta;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.net.HttpURLConnection;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * Walks the .delta chain starting at the installed build. For every link
+ * the .delta and .delta_revoked files are requested at the same time, and
+ * while that is in flight the link after it is requested as well, guessing
+ * its name from the build timestamp in the current one (the fifth '-'
+ * separated field, yyyyMMddHHmm or yyyyMMdd) plus the interval between the
+ * previous two builds. A right guess saves a full round trip per link, a
+ * wrong one costs two small 404s. Guesses are only made where they have a
+ * chance: when the previous two builds were a whole number of days apart,
+ * or for the first link if the names carry no time of day. Names that
+ * don't fit are walked without guessing.
+ *
+ * If the server publishes a chain manifest, the links it knows about are
+ * taken from there. When its last link ends at the latest full build the
+ * manifest is complete and that is all, a single request. Only a manifest
+ * that stops short of the latest build (or one we can't compare with it)
+ * is continued by the network walk, in case it is older than the newest
+ * delta.
+ *
+ * Links already in the DeltaInfoCache are not fetched again, at most
+ * revalidated with a HEAD request once they are older than its TTL. Their
+ * out-names are known up front, so the whole cached stretch of the chain is
+ * requested (revalidated) at once rather than link by link. The cache is
+ * only pruned to the resolved chain after a walk that reached its real end,
+ * not one cut short by a network error.
+ *
+ * The result is the same list the old one-by-one walk produced.
+ */
+public class DeltaChainResolver {
+    private static final long DAY_MS = 24L * 60L * 60L * 1000L;
+    private static final long[] DEFAULT_STEPS = new long[]{DAY_MS, 7 * DAY_MS};
+    // <name>-<version>-<device>-<type>-<timestamp>, see also isMatchingImage
+    private static final int STAMP_FIELD = 4;
+    private static final Pattern STAMP = Pattern.compile("^(\\d{12}|\\d{8})(?!\\d)");
+
+    public interface Fetcher {
+        // status (if not null) receives the HTTP status, -1 on connection failure
+        byte[] fetch(String url, int[] status);
+
+        // HTTP status of a HEAD request, -1 on connection failure
+        int probe(String url);
+    }
+
+    private final Fetcher fetcher;
+    private final String urlBase;
+    private final DeltaInfoCache cache;
+    private final ExecutorService executor;
+    private final Map<String, List<Future<DeltaInfo>>> requests = new HashMap<>();
+    // Names we couldn't get a definitive answer for
+    private final Set<String> failed = ConcurrentHashMap.newKeySet();
+
+    public DeltaChainResolver(Fetcher fetcher, String urlBase, DeltaInfoCache cache,
+            int threads) {
+        this.fetcher = fetcher;
+        this.urlBase = urlBase;
+        this.cache = cache;
+        executor = Executors.newFixedThreadPool(Math.max(1, threads));
+    }
+
+    public List<DeltaInfo> resolve(String name) {
+        return resolve(name, null, null);
+    }
+
+    // latest is the newest full build's name, if known
+    public List<DeltaInfo> resolve(String name, String manifest, String latest) {
+        List<DeltaInfo> deltas = new ArrayList<>();
+        if (manifest != null) {
+            name = walkManifest(manifest, name, deltas);
+            if (!deltas.isEmpty() && (latest != null)
+                    && name.equals(latest.replace(".zip", ""))) {
+                Logger.d("delta manifest reaches [%s]", latest);
+                executor.shutdownNow();
+                retain(deltas);
+                return deltas;
+            }
+        }
+        boolean complete = false;
+        try {
+            prefetchCached(name);
+            long step = -1;
+            while (true) {
+                List<Future<DeltaInfo>> request = request(name);
+                if ((cache != null) && (cache.get(name) != null)) {
+                    // Its next link was requested by prefetchCached
+                } else if (step > 0) {
+                    // Only scheduled builds keep their time of day
+                    if (step % DAY_MS == 0)
+                        speculate(name, step);
+                } else if (isDateOnly(name)) {
+                    for (long defaultStep : DEFAULT_STEPS)
+                        speculate(name, defaultStep);
+                }
+
+                DeltaInfo delta = get(name, request.get(0));
+                if (delta == null) {
+                    // See if we have a revoked version instead, we still
+                    // need it for chaining future deltas, but will not allow
+                    // flashing this one
+                    delta = get(name, request.get(1));
+                }
+
+                // We didn't get a delta or a delta_revoked - end of the
+                // delta availability chain, unless the network let us down
+                if (delta == null) {
+                    complete = !failed.contains(name);
+                    break;
+                }
+
+                Logger.d("delta --> [%s]", delta.getOut().getName());
+                String next = delta.getOut().getName().replace(".zip", "");
+                step = getInterval(name, next);
+                deltas.add(delta);
+                name = next;
+            }
+        } finally {
+            // Anything still running is a wrong guess
+            executor.shutdownNow();
+        }
+
+        if (complete)
+            retain(deltas);
+        return deltas;
+    }
+
+    private void retain(List<DeltaInfo> deltas) {
+        if (cache == null)
+            return;
+        List<String> names = new ArrayList<>();
+        for (DeltaInfo delta : deltas)
+            names.add(delta.getIn().getName().replace(".zip", ""));
+        cache.retain(names);
+    }
+
+    /*
+     * Append the links the manifest has for name and onward to deltas,
+     * returns the name the walk should continue from. A manifest we can't
+     * read is ignored.
+     */
+    private String walkManifest(String manifest, String name, List<DeltaInfo> deltas) {
+        Map<String, DeltaInfo> links = new HashMap<>();
+        try {
+            JSONObject object = new JSONObject(manifest);
+            JSONArray list = object.getJSONArray("deltas");
+            for (int i = 0; i < list.length(); i++) {
+                JSONObject entry = list.getJSONObject(i);
+                DeltaInfo delta = new DeltaInfo(entry.getJSONObject("delta"),
+                        entry.optBoolean("revoked", false));
+                String in = delta.getIn().getName().replace(".zip", "");
+                // Same as the walk: a .delta wins over a .delta_revoked
+                DeltaInfo known = links.get(in);
+                if ((known == null) || known.isRevoked())
+                    links.put(in, delta);
+            }
+        } catch (JSONException | NullPointerException e) {
+            Logger.ex(e);
+            return name;
+        }
+
+        Set<String> seen = new HashSet<>();
+        DeltaInfo delta;
+        while (((delta = links.get(name)) != null) && seen.add(name)) {
+            Logger.d("delta (manifest) --> [%s]", delta.getOut().getName());
+            deltas.add(delta);
+            name = delta.getOut().getName().replace(".zip", "");
+        }
+        return name;
+    }
+
+    // Request every link the cache already knows from name onward, and the
+    // one after the last of them
+    private void prefetchCached(String name) {
+        if (cache == null)
+            return;
+        Set<String> seen = new HashSet<>();
+        DeltaInfo cached;
+        while (((cached = cache.get(name)) != null) && seen.add(name)) {
+            request(name);
+            name = cached.getOut().getName().replace(".zip", "");
+        }
+        request(name);
+    }
+
+    private void speculate(String name, long ms) {
+        // The next link starts at the build this one produces
+        String guess = addInterval(name, ms);
+        if (guess != null) {
+            Logger.d("delta speculative --> [%s]", guess);
+            request(guess);
+        }
+    }
+
+    // Returns the .delta and .delta_revoked requests for name
+    private List<Future<DeltaInfo>> request(final String name) {
+        List<Future<DeltaInfo>> request = requests.get(name);
+        if (request == null) {
+            final String url = String.format(Locale.ENGLISH, "%s%s.delta", urlBase, name);
+            request = new ArrayList<>();
+            final DeltaInfo cached = (cache != null) ? cache.get(name) : null;
+            if (cached != null) {
+                if (cached.isRevoked()) {
+                    request.add(CompletableFuture.completedFuture(null));
+                    request.add(CompletableFuture.completedFuture(cached));
+                } else if (cache.isFresh(name)) {
+                    request.add(CompletableFuture.completedFuture(cached));
+                    request.add(CompletableFuture.completedFuture(null));
+                } else {
+                    request.add(executor.submit(() -> revalidate(url, name, cached)));
+                    request.add(CompletableFuture.completedFuture(null));
+                }
+            } else {
+                request.add(executor.submit(() -> fetch(url, name, false)));
+                request.add(executor.submit(() -> fetch(
+                        url.replace(".delta", ".delta_revoked"), name, true)));
+            }
+            requests.put(name, request);
+        }
+        return request;
+    }
+
+    private DeltaInfo revalidate(String url, String name, DeltaInfo cached) {
+        int code = fetcher.probe(url);
+        if (code == HttpURLConnection.HTTP_OK) {
+            cache.touch(name);
+            return cached;
+        }
+        if (code != HttpURLConnection.HTTP_NOT_FOUND) {
+            // Server trouble, treat like any other failed request
+            failed.add(name);
+            return null;
+        }
+        // Most likely revoked since
+        Logger.d("delta cache stale [%s]", name);
+        cache.remove(name);
+        return fetch(url.replace(".delta", ".delta_revoked"), name, true);
+    }
+
+    private DeltaInfo get(String name, Future<DeltaInfo> request) {
+        try {
+            return request.get();
+        } catch (InterruptedException | ExecutionException e) {
+            Logger.ex(e);
+            failed.add(name);
+            return null;
+        }
+    }
+
+    private DeltaInfo fetch(String url, String name, boolean isRevoked) {
+        int[] status = new int[]{-1};
+        byte[] data = fetcher.fetch(url, status);
+        if ((status[0] != HttpURLConnection.HTTP_OK)
+                && (status[0] != HttpURLConnection.HTTP_NOT_FOUND))
+            failed.add(name);
+        if (data != null && data.length != 0) {
+            try {
+                DeltaInfo delta = new DeltaInfo(data, isRevoked);
+                if (cache != null)
+                    cache.put(name, data, isRevoked);
+                return delta;
+            } catch (JSONException | NullPointerException e) {
+                // There's an error in the JSON. Could be bad JSON, could be
+                // a 404 text, etc
+                Logger.ex(e);
+            }
+        }
+        return null;
+    }
+
+    // The build timestamp in name, or null if name doesn't have one
+    private Matcher findStamp(String name) {
+        int start = 0;
+        for (int i = 0; i < STAMP_FIELD; i++) {
+            start = name.indexOf('-', start) + 1;
+            if (start == 0)
+                return null;
+        }
+        Matcher matcher = STAMP.matcher(name).region(start, name.length());
+        return matcher.lookingAt() ? matcher : null;
+    }
+
+    private SimpleDateFormat getFormat(String stamp) {
+        SimpleDateFormat format = new SimpleDateFormat(
+                stamp.length() == 8 ? "yyyyMMdd" : "yyyyMMddHHmm", Locale.ENGLISH);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        format.setLenient(false);
+        return format;
+    }
+
+    private Date getDate(Matcher matcher) {
+        try {
+            return getFormat(matcher.group(1)).parse(matcher.group(1));
+        } catch (ParseException e) {
+            // Digits, but not a date
+            return null;
+        }
+    }
+
+    private boolean isDateOnly(String name) {
+        Matcher matcher = findStamp(name);
+        return (matcher != null) && (matcher.group(1).length() == 8) && (getDate(matcher) != null);
+    }
+
+    private long getInterval(String from, String to) {
+        Matcher matcherFrom = findStamp(from);
+        Matcher matcherTo = findStamp(to);
+        if ((matcherFrom == null) || (matcherTo == null)
+                || (matcherFrom.group(1).length() != matcherTo.group(1).length()))
+            return -1;
+        Date dateFrom = getDate(matcherFrom);
+        Date dateTo = getDate(matcherTo);
+        if ((dateFrom == null) || (dateTo == null))
+            return -1;
+        return dateTo.getTime() - dateFrom.getTime();
+    }
+
+    private String addInterval(String name, long ms) {
+        Matcher matcher = findStamp(name);
+        if (matcher == null)
+            return null;
+        Date date = getDate(matcher);
+        if (date == null)
+            return null;
+        return name.substring(0, matcher.start(1))
+                + getFormat(matcher.group(1)).format(new Date(date.getTime() + ms))
+                + name.substring(matcher.end(1));
+    }
+}
@@ -25,32 +25,30 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.math.BigInteger;
 import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Locale;
-import java.util.logging.Logger;
 
 public class DeltaInfo {
     private final int version;
     private final FileFull in;
-    private final FileUpdate update;
+    private FileUpdate update;
+    private final FileUpdate updateSegmented;
     private final FileUpdate signature;
     private final FileFull out;
     private final boolean revoked;
 
     public DeltaInfo(byte[] raw, boolean revoked) throws JSONException,
             NullPointerException {
-        JSONObject object;
-        object = new JSONObject(new String(raw, StandardCharsets.UTF_8));
+        this(new JSONObject(new String(raw, StandardCharsets.UTF_8)), revoked);
+    }
 
+    public DeltaInfo(JSONObject object, boolean revoked) throws JSONException,
+            NullPointerException {
         version = object.getInt("version");
         in = new FileFull(object.getJSONObject("in"));
-        update = new FileUpdate(object.getJSONObject("update"));
-        signature = new FileUpdate(object.getJSONObject("signature"));
+        update = new FileUpdate(object.getJSONObject("update"), false);
+        JSONObject segmented = object.optJSONObject("update_segmented");
+        updateSegmented = (segmented != null) ? new FileUpdate(segmented, true) : null;
+        signature = new FileUpdate(object.getJSONObject("signature"), false);
         out = new FileFull(object.getJSONObject("out"));
         this.revoked = revoked;
     }
@@ -67,6 +65,15 @@ public class DeltaInfo {
         return update;
     }
 
+    // Switch getUpdate() to the segmented delta, if the server has one.
+    // Returns whether it did
+    public boolean useSegmented() {
+        if (updateSegmented == null)
+            return false;
+        update = updateSegmented;
+        return true;
+    }
+
     public FileUpdate getSignature() {
         return signature;
     }
@@ -79,52 +86,6 @@ public class DeltaInfo {
         return revoked;
     }
 
-    private float getProgress(long current, long total) {
-        if (total == 0)
-            return 0f;
-        return ((float) current / (float) total) * 100f;
-    }
-
-    private String getFileSHA256(File file, ProgressListener progressListener) {
-        String ret = null;
-
-        long current = 0;
-        long total = file.length();
-        if (progressListener != null)
-            progressListener.onProgress(getProgress(current, total), current, total);
-
-        try {
-            try (FileInputStream is = new FileInputStream(file)) {
-                MessageDigest digest = MessageDigest.getInstance("SHA256");
-                byte[] buffer = new byte[256 * 1024];
-                int r;
-
-                while ((r = is.read(buffer)) > 0) {
-                    digest.update(buffer, 0, r);
-                    current += r;
-                    if (progressListener != null)
-                        progressListener.onProgress(getProgress(current, total), current, total);
-                }
-
-                StringBuilder SUM = new StringBuilder(new BigInteger(1, digest.digest()).
-                        toString(16).toLowerCase(Locale.ENGLISH));
-                while (SUM.length() < 32)
-                    SUM.insert(0, "0");
-                ret = SUM.toString();
-            }
-        } catch (NoSuchAlgorithmException | IOException e) {
-            // No SHA256 support (returns null)
-            // The SHA256 of a non-existing file is null
-            // Read or close error (returns null)
-            Logger.ex(e);
-        }
-
-        if (progressListener != null)
-            progressListener.onProgress(getProgress(total, total), total, total);
-
-        return ret;
-    }
-
     public interface ProgressListener {
         void onProgress(float progress, long current, long total);
 
@@ -149,7 +110,7 @@ public class DeltaInfo {
         }
     }
 
-    public static class FileBase {
+    public abstract static class FileBase {
         private final String name;
         private Object tag = null;
 
@@ -169,19 +130,24 @@ public class DeltaInfo {
             this.tag = tag;
         }
 
-        public FileSizeSHA256 match(File f, boolean checkSUM, ProgressListener progressListener) {
-            return null;
-        }
+        public abstract FileSizeSHA256 match(File f, boolean checkSUM, CancelToken cancelToken,
+                                             ProgressListener progressListener);
     }
 
     public class FileUpdate extends FileBase {
         private final FileSizeSHA256 update;
         private final FileSizeSHA256 applied;
+        private final boolean segmented;
 
-        public FileUpdate(JSONObject object) throws JSONException {
+        public FileUpdate(JSONObject object, boolean segmented) throws JSONException {
             super(object);
             update = new FileSizeSHA256(object, null);
             applied = new FileSizeSHA256(object, "applied");
+            this.segmented = segmented;
+        }
+
+        public boolean isSegmented() {
+            return segmented;
         }
 
         public FileSizeSHA256 getUpdate() {
@@ -192,16 +158,11 @@ public class DeltaInfo {
             return applied;
         }
 
-        public FileSizeSHA256 match(File f, boolean checkSUM, ProgressListener progressListener) {
-            if (f.exists()) {
-                if (f.length() == getUpdate().getSize())
-                    if (!checkSUM || getUpdate().getSHA256().equals(getFileSHA256(f, progressListener)))
-                        return getUpdate();
-                if (f.length() == getApplied().getSize())
-                    if (!checkSUM || getApplied().getSHA256().equals(getFileSHA256(f, progressListener)))
-                        return getApplied();
-            }
-            return null;
+        @Override
+        public FileSizeSHA256 match(File f, boolean checkSUM, CancelToken cancelToken,
+                                    ProgressListener progressListener) {
+            return FileHasher.match(f, checkSUM, cancelToken, progressListener,
+                    getUpdate(), getApplied());
         }
     }
 
@@ -229,20 +190,11 @@ public class DeltaInfo {
             return storeSigned;
         }
 
-        public FileSizeSHA256 match(File f, boolean checkSUM, ProgressListener progressListener) {
-            if (f.exists()) {
-                if (f.length() == getOfficial().getSize())
-                    if (!checkSUM || getOfficial().getSHA256().equals(getFileSHA256(f, progressListener)))
-                        return getOfficial();
-                if (f.length() == getStore().getSize())
-                    if (!checkSUM || getStore().getSHA256().equals(getFileSHA256(f, progressListener)))
-                        return getStore();
-                if (f.length() == getStoreSigned().getSize())
-                    if (!checkSUM
-                            || getStoreSigned().getSHA256().equals(getFileSHA256(f, progressListener)))
-                        return getStoreSigned();
-            }
-            return null;
+        @Override
+        public FileSizeSHA256 match(File f, boolean checkSUM, CancelToken cancelToken,
+                                    ProgressListener progressListener) {
+            return FileHasher.match(f, checkSUM, cancelToken, progressListener,
+                    getOfficial(), getStore(), getStoreSigned());
         }
 
         public boolean isOfficialFile(File f) {
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2021 Yet Another AOSP Project
+ */
+/*
+ * This file is part of OpenDelta.
+ *
+ * OpenDelta is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDelta is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenDelta. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.opendelta;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/*
+ * Parsed .delta records, keyed by the name of the build they start from.
+ * A published delta never changes, it can only be revoked by renaming it,
+ * so an entry is trusted as-is for REVALIDATE_MS and after that only needs
+ * a HEAD request to confirm it was not revoked. Revoked entries stay
+ * revoked. REVALIDATE_MS is kept well above the scheduler's 6 hour check
+ * interval, so most checks don't revalidate anything; a revocation is
+ * noticed within two days, or right away by a chain manifest.
+ */
+public class DeltaInfoCache {
+    private static final String PREFS_NAME = "delta_cache";
+    private static final long REVALIDATE_MS = 48L * 60L * 60L * 1000L;
+
+    private final SharedPreferences prefs;
+
+    public DeltaInfoCache(Context context) {
+        prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    public DeltaInfo get(String name) {
+        String raw = prefs.getString(name, null);
+        if (raw == null)
+            return null;
+        try {
+            JSONObject object = new JSONObject(raw);
+            return new DeltaInfo(object.getJSONObject("delta"), object.getBoolean("revoked"));
+        } catch (JSONException | NullPointerException e) {
+            Logger.ex(e);
+            remove(name);
+            return null;
+        }
+    }
+
+    public boolean isFresh(String name) {
+        String raw = prefs.getString(name, null);
+        if (raw == null)
+            return false;
+        try {
+            long age = System.currentTimeMillis() - new JSONObject(raw).getLong("time");
+            // using abs for clock changes
+            return Math.abs(age) < REVALIDATE_MS;
+        } catch (JSONException e) {
+            return false;
+        }
+    }
+
+    public void put(String name, byte[] data, boolean revoked) {
+        try {
+            JSONObject object = new JSONObject();
+            object.put("revoked", revoked);
+            object.put("time", System.currentTimeMillis());
+            object.put("delta", new JSONObject(new String(data, StandardCharsets.UTF_8)));
+            prefs.edit().putString(name, object.toString()).apply();
+        } catch (JSONException e) {
+            Logger.ex(e);
+        }
+    }
+
+    // Revalidated, trust it for another REVALIDATE_MS
+    public void touch(String name) {
+        String raw = prefs.getString(name, null);
+        if (raw == null)
+            return;
+        try {
+            JSONObject object = new JSONObject(raw);
+            object.put("time", System.currentTimeMillis());
+            prefs.edit().putString(name, object.toString()).apply();
+        } catch (JSONException e) {
+            Logger.ex(e);
+        }
+    }
+
+    public void remove(String name) {
+        prefs.edit().remove(name).apply();
+    }
+
+    // We only ever move forward, anything not on the current chain is
+    // unreachable from now on. Only call this with a chain that was
+    // resolved to its end
+    public void retain(Collection<String> names) {
+        Set<String> drop = new HashSet<>(prefs.getAll().keySet());
+        drop.removeAll(names);
+        if (drop.isEmpty())
+            return;
+        SharedPreferences.Editor editor = prefs.edit();
+        for (String name : drop) {
+            Logger.d("delta cache evict [%s]", name);
+            editor.remove(name);
+        }
+        editor.apply();
+    }
+}
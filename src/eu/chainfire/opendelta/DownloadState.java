@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2021 Yet Another AOSP Project
+ */
+/*
+ * This file is part of OpenDelta.
+ *
+ * OpenDelta is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDelta is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenDelta. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.opendelta;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.BitSet;
+
+/*
+ * Sidecar record for a partially downloaded file. The data itself lives in
+ * <name>.part, the record in <name>.part.json, so a download that is cut
+ * short can later continue with a Range request instead of starting over.
+ *
+ * A record is either contiguous (everything before 'done' is present) or
+ * segmented (fixed size chunks, each of which is present or not).
+ */
+public class DownloadState {
+    private static final String PARTIAL_SUFFIX = ".part";
+    private static final String STATE_SUFFIX = ".part.json";
+
+    private final File file;
+    private final String url;
+    private long length = -1;
+    private String eTag = null;
+    private String lastModified = null;
+    private long done = 0;
+    private long chunkSize = 0;
+    private BitSet chunks = null;
+
+    private DownloadState(File file, String url) {
+        this.file = file;
+        this.url = url;
+    }
+
+    public static DownloadState load(File file, String url) {
+        DownloadState state = new DownloadState(file, url);
+        File stateFile = state.getStateFile();
+        if (!stateFile.exists()) {
+            state.getPartialFile().delete();
+            return state;
+        }
+
+        try (FileInputStream is = new FileInputStream(stateFile)) {
+            byte[] raw = new byte[(int) stateFile.length()];
+            int offset = 0;
+            int r;
+            while ((offset < raw.length) && ((r = is.read(raw, offset, raw.length - offset)) > 0)) {
+                offset += r;
+            }
+            JSONObject object = new JSONObject(new String(raw, 0, offset, StandardCharsets.UTF_8));
+            if (url.equals(object.getString("url"))) {
+                state.length = object.getLong("length");
+                state.eTag = object.has("etag") ? object.getString("etag") : null;
+                state.lastModified = object.has("last_modified") ? object.getString("last_modified") : null;
+                state.done = Math.min(object.getLong("done"), state.getPartialFile().length());
+                if (object.has("chunk_size")) {
+                    state.chunkSize = object.getLong("chunk_size");
+                    state.chunks = new BitSet();
+                    String chunks = object.getString("chunks");
+                    for (int i = 0; i < chunks.length(); i++) {
+                        if (chunks.charAt(i) == '1')
+                            state.chunks.set(i);
+                    }
+                    if ((state.chunkSize <= 0) || (state.getPartialFile().length() != state.length))
+                        state.done = 0;
+                }
+            }
+        } catch (IOException | JSONException e) {
+            // Corrupt or unreadable record, start over
+            Logger.ex(e);
+        }
+
+        if (state.done <= 0 || state.length <= 0 || state.getValidator() == null) {
+            state.delete();
+            state.reset(-1, null, null);
+        }
+        return state;
+    }
+
+    public static long getContentRangeTotal(String contentRange) {
+        // bytes <first>-<last>/<total>
+        if (contentRange != null) {
+            int slash = contentRange.lastIndexOf('/');
+            if (slash >= 0) {
+                try {
+                    return Long.parseLong(contentRange.substring(slash + 1).trim());
+                } catch (NumberFormatException e) {
+                    // '*' or garbage, total unknown
+                }
+            }
+        }
+        return -1;
+    }
+
+    public File getPartialFile() {
+        return new File(file.getPath() + PARTIAL_SUFFIX);
+    }
+
+    private File getStateFile() {
+        return new File(file.getPath() + STATE_SUFFIX);
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public long getDone() {
+        return done;
+    }
+
+    public boolean isSegmented() {
+        return chunks != null;
+    }
+
+    public long getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getChunkCount() {
+        return (int) ((length + chunkSize - 1) / chunkSize);
+    }
+
+    public synchronized boolean isChunkDone(int chunk) {
+        return chunks.get(chunk);
+    }
+
+    public synchronized void setChunkDone(int chunk) {
+        if (!chunks.get(chunk)) {
+            chunks.set(chunk);
+            done += Math.min(chunkSize, length - (long) chunk * chunkSize);
+        }
+    }
+
+    public void setDone(long done) {
+        this.done = done;
+    }
+
+    public String getValidator() {
+        return getValidator(eTag, lastModified);
+    }
+
+    // If-Range needs a strong validator, a weak ETag would never match
+    public static String getValidator(String eTag, String lastModified) {
+        if ((eTag != null) && !eTag.startsWith("W/"))
+            return eTag;
+        return lastModified;
+    }
+
+    public void reset(long length, String eTag, String lastModified) {
+        this.length = length;
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+        this.done = 0;
+        this.chunkSize = 0;
+        this.chunks = null;
+    }
+
+    public void resetSegmented(long length, String eTag, String lastModified, long chunkSize) {
+        reset(length, eTag, lastModified);
+        this.chunkSize = chunkSize;
+        this.chunks = new BitSet();
+    }
+
+    public boolean matches(long length, String validator) {
+        return (this.length == length) && (validator != null)
+                && validator.equals(getValidator());
+    }
+
+    /*
+     * The digest state of the bytes we already have is not persisted,
+     * instead it is rebuilt from the partial file. This also throws away
+     * anything written after the last time the record was saved.
+     */
+    public boolean prepare(MessageDigest digest) {
+        if (isSegmented())
+            return false;
+        if (done == 0)
+            return true;
+
+        try (RandomAccessFile raf = new RandomAccessFile(getPartialFile(), "rw")) {
+            if (raf.length() < done)
+                return false;
+            raf.setLength(done);
+
+            if (digest != null) {
+                byte[] buffer = new byte[256 * 1024];
+                long left = done;
+                raf.seek(0);
+                while (left > 0) {
+                    int r = raf.read(buffer, 0, (int) Math.min(buffer.length, left));
+                    if (r <= 0)
+                        return false;
+                    digest.update(buffer, 0, r);
+                    left -= r;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            Logger.ex(e);
+        }
+        return false;
+    }
+
+    public synchronized void save() {
+        if (getValidator() == null) {
+            // Without a validator we can never safely resume
+            return;
+        }
+        try {
+            JSONObject object = new JSONObject();
+            object.put("url", url);
+            object.put("length", length);
+            if (eTag != null)
+                object.put("etag", eTag);
+            if (lastModified != null)
+                object.put("last_modified", lastModified);
+            object.put("done", done);
+            if (isSegmented()) {
+                StringBuilder bits = new StringBuilder();
+                for (int i = 0; i < getChunkCount(); i++)
+                    bits.append(chunks.get(i) ? '1' : '0');
+                object.put("chunk_size", chunkSize);
+                object.put("chunks", bits.toString());
+            }
+            try (FileOutputStream os = new FileOutputStream(getStateFile(), false)) {
+                os.write(object.toString().getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (IOException | JSONException e) {
+            Logger.ex(e);
+        }
+    }
+
+    public boolean complete() {
+        getStateFile().delete();
+        if (file.exists())
+            file.delete();
+        return getPartialFile().renameTo(file);
+    }
+
+    public void delete() {
+        getStateFile().delete();
+        getPartialFile().delete();
+    }
+}
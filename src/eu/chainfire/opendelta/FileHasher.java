@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2021 Yet Another AOSP Project
+ */
+/*
+ * This file is part of OpenDelta.
+ *
+ * OpenDelta is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDelta is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenDelta. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.opendelta;
+
+import android.os.SystemClock;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+/*
+ * All hashing of local files goes through here. Sums are answered from
+ * HashCache where possible, and otherwise computed natively, where large
+ * sequential reads and the CPU's SHA instructions make verifying a multi-GB
+ * ZIP several times faster than MessageDigest over a FileInputStream, which
+ * remains as the fallback for a library without sha256File. Hashing stops
+ * early, returning null, once the given CancelToken (if any) is cancelled.
+ */
+public class FileHasher {
+    private static float getProgress(long current, long total) {
+        if (total == 0)
+            return 0f;
+        return ((float) current / (float) total) * 100f;
+    }
+
+    // Lower case hex, zero padded to all 64 digits as sha256sum prints it
+    public static String toHex(byte[] sum) {
+        StringBuilder SUM = new StringBuilder(new BigInteger(1, sum)
+                .toString(16).toLowerCase(Locale.ENGLISH));
+        while (SUM.length() < 64)
+            SUM.insert(0, "0");
+        return SUM.toString();
+    }
+
+    // The digest toHex produced, or null if sum is not one
+    public static byte[] fromHex(String sum) {
+        if ((sum == null) || (sum.length() != 64))
+            return null;
+        byte[] ret = new byte[32];
+        for (int i = 0; i < ret.length; i++) {
+            int hi = Character.digit(sum.charAt(i * 2), 16);
+            int lo = Character.digit(sum.charAt(i * 2 + 1), 16);
+            if ((hi < 0) || (lo < 0))
+                return null;
+            ret[i] = (byte) ((hi << 4) | lo);
+        }
+        return ret;
+    }
+
+    // The SHA-256 of file as hex, or null if it can't be read
+    public static String sha256(File file, CancelToken cancelToken,
+                                DeltaInfo.ProgressListener progressListener) {
+        HashCache hashCache = HashCache.getInstance();
+        if (hashCache != null) {
+            String ret = hashCache.get(file);
+            if (ret != null) {
+                long total = file.length();
+                if (progressListener != null)
+                    progressListener.onProgress(getProgress(total, total), total, total);
+                return ret;
+            }
+        }
+
+        String identity = HashCache.identify(file);
+        byte[] sum = digest(file, cancelToken, progressListener);
+        String ret = (sum != null) ? toHex(sum) : null;
+        Logger.d("sha256sum of %s: %s", file.getName(), ret);
+
+        if (hashCache != null)
+            hashCache.put(file, identity, ret);
+
+        return ret;
+    }
+
+    /*
+     * The first of candidates that file matches in size and, if checkSUM, in
+     * SHA-256, or null. However many candidates share the file's size, it is
+     * read at most once.
+     */
+    public static DeltaInfo.FileSizeSHA256 match(File file, boolean checkSUM,
+                                                 CancelToken cancelToken,
+                                                 DeltaInfo.ProgressListener progressListener,
+                                                 DeltaInfo.FileSizeSHA256... candidates) {
+        if (!file.exists())
+            return null;
+
+        long size = file.length();
+        String sum = null;
+        for (DeltaInfo.FileSizeSHA256 candidate : candidates) {
+            if (candidate.getSize() != size)
+                continue;
+            if (!checkSUM)
+                return candidate;
+            if (sum == null) {
+                sum = sha256(file, cancelToken, progressListener);
+                if (sum == null)
+                    return null;
+            }
+            if (candidate.getSHA256().equals(sum))
+                return candidate;
+        }
+        return null;
+    }
+
+    private static byte[] digest(File file, CancelToken cancelToken,
+                                 DeltaInfo.ProgressListener progressListener) {
+        long total = file.length();
+        if (progressListener != null)
+            progressListener.onProgress(getProgress(0, total), 0, total);
+
+        // timed, so device numbers show up in the log (see also
+        // jni/hash_run.c)
+        long start = SystemClock.elapsedRealtime();
+        String method = "native";
+        byte[] ret;
+        try {
+            ret = sha256Native(file, total, cancelToken, progressListener);
+        } catch (UnsatisfiedLinkError e) {
+            Logger.d("native sha256 not available: %s", e.getMessage());
+            method = "java";
+            ret = sha256Java(file, total, cancelToken, progressListener);
+        }
+        Logger.d("sha256 (%s) of %s: %d bytes in %d ms", method, file.getName(), total,
+                SystemClock.elapsedRealtime() - start);
+
+        if (progressListener != null)
+            progressListener.onProgress(getProgress(total, total), total, total);
+
+        return ret;
+    }
+
+    private static byte[] sha256Native(File file, long total, CancelToken cancelToken,
+                                       DeltaInfo.ProgressListener progressListener) {
+        // native code counts the bytes it hashes, report those in the
+        // background as progress. It also stops when cancelToken flags it
+        ByteBuffer nativeProgress = (cancelToken != null)
+                ? cancelToken.newProgress() : Native.newProgress();
+        Thread progress = null;
+        if (progressListener != null) {
+            progress = new Thread(() -> {
+                while (true) {
+                    try {
+                        long current = Native.getProgressIn(nativeProgress);
+                        progressListener.onProgress(getProgress(current, total), current, total);
+
+                        Thread.sleep(16);
+                    } catch (InterruptedException e) {
+                        // We're being told to quit
+                        break;
+                    }
+                }
+            });
+            progress.start();
+        }
+
+        byte[] sum = new byte[32];
+        int ok;
+        try {
+            ok = Native.sha256File(file.getAbsolutePath(), nativeProgress, sum);
+        } finally {
+            if (progress != null) {
+                progress.interrupt();
+                try {
+                    progress.join();
+                } catch (InterruptedException e) {
+                    // We got interrupted in a very short wait, surprising, but
+                    // not a problem. 'progress' will quit by itself.
+                    Logger.ex(e);
+                }
+            }
+            if (cancelToken != null)
+                cancelToken.release(nativeProgress);
+        }
+
+        return (ok == 1) ? sum : null;
+    }
+
+    private static byte[] sha256Java(File file, long total, CancelToken cancelToken,
+                                     DeltaInfo.ProgressListener progressListener) {
+        long current = 0;
+        try (FileInputStream is = new FileInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[256 * 1024];
+            int r;
+
+            while ((r = is.read(buffer)) > 0) {
+                if ((cancelToken != null) && cancelToken.isCancelled())
+                    return null;
+                digest.update(buffer, 0, r);
+                current += r;
+                if (progressListener != null)
+                    progressListener.onProgress(getProgress(current, total), current, total);
+            }
+
+            return digest.digest();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            // No SHA256 support (returns null)
+            // The SHA256 of a non-existing file is null
+            // Read or close error (returns null)
+            Logger.ex(e);
+            return null;
+        }
+    }
+}
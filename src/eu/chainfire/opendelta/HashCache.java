@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2021 Yet Another AOSP Project
+ */
+/*
+ * This file is part of OpenDelta.
+ *
+ * OpenDelta is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDelta is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenDelta. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.opendelta;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.Map;
+
+/*
+ * SHA-256 of local files, keyed by path. An entry holds for as long as the
+ * file's size, modification time and inode are the ones it was hashed at,
+ * so the multi-GB ZIPs every check looks at are only read again once they
+ * were actually replaced or changed. Every reverifyMs an entry is ignored
+ * once anyway, to catch changes that left all of those alone.
+ */
+public class HashCache {
+    private static final String PREFS_NAME = "hash_cache";
+
+    private static HashCache instance = null;
+
+    // Created on first use with a Context. Until then the no argument
+    // version returns null, and callers just hash
+    public static synchronized HashCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new HashCache(context.getApplicationContext(),
+                    Config.getInstance(context).getHashCacheReverifyMs());
+        }
+        return instance;
+    }
+
+    public static synchronized HashCache getInstance() {
+        return instance;
+    }
+
+    private final SharedPreferences prefs;
+    private final long reverifyMs;
+
+    private HashCache(Context context, long reverifyMs) {
+        prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        this.reverifyMs = reverifyMs;
+        prune();
+    }
+
+    /*
+     * What the filesystem tells about the file's current contents, or null
+     * if it can't be stat'ed. Take this before hashing and hand it to put(),
+     * so a file that changed meanwhile is not recorded.
+     */
+    public static String identify(File file) {
+        try {
+            StructStat st = Os.stat(file.getAbsolutePath());
+            return st.st_size + ":" + st.st_mtim.tv_sec + "." + st.st_mtim.tv_nsec + ":"
+                    + st.st_ino;
+        } catch (ErrnoException e) {
+            return null;
+        }
+    }
+
+    // The SHA-256 recorded for file, or null if it needs hashing
+    public String get(File file) {
+        String path = file.getAbsolutePath();
+        String raw = prefs.getString(path, null);
+        if (raw == null)
+            return null;
+        try {
+            JSONObject object = new JSONObject(raw);
+            String identity = identify(file);
+            if ((identity == null) || !identity.equals(object.getString("id"))) {
+                Logger.d("hash cache stale [%s]", path);
+                prefs.edit().remove(path).apply();
+                return null;
+            }
+            // using abs for clock changes
+            if ((reverifyMs > 0)
+                    && (Math.abs(System.currentTimeMillis() - object.getLong("time")) >= reverifyMs)) {
+                Logger.d("hash cache reverify [%s]", path);
+                return null;
+            }
+            String sha256 = object.getString("sha256");
+            // recorded before sums were always padded to 64 digits
+            if (sha256.length() != 64)
+                return null;
+            return sha256;
+        } catch (JSONException e) {
+            Logger.ex(e);
+            prefs.edit().remove(path).apply();
+            return null;
+        }
+    }
+
+    // Record sha256 for file, as long as it is still what identity describes
+    public void put(File file, String identity, String sha256) {
+        String path = file.getAbsolutePath();
+        if ((identity == null) || (sha256 == null) || !identity.equals(identify(file))) {
+            prefs.edit().remove(path).apply();
+            return;
+        }
+        try {
+            String raw = prefs.getString(path, null);
+            JSONObject previous = (raw != null) ? new JSONObject(raw) : null;
+            if ((previous != null) && identity.equals(previous.optString("id"))
+                    && !sha256.equals(previous.optString("sha256"))) {
+                Logger.d("hash cache: [%s] changed without its size, time or inode", path);
+            }
+            JSONObject object = new JSONObject();
+            object.put("id", identity);
+            object.put("sha256", sha256);
+            object.put("time", System.currentTimeMillis());
+            prefs.edit().putString(path, object.toString()).apply();
+        } catch (JSONException e) {
+            Logger.ex(e);
+        }
+    }
+
+    // Forget files that are gone
+    private void prune() {
+        SharedPreferences.Editor editor = null;
+        for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+            if (!(new File(entry.getKey())).exists()) {
+                if (editor == null)
+                    editor = prefs.edit();
+                editor.remove(entry.getKey());
+            }
+        }
+        if (editor != null)
+            editor.apply();
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2021 Yet Another AOSP Project
+ */
+/*
+ * This file is part of OpenDelta.
+ *
+ * OpenDelta is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDelta is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenDelta. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.opendelta;
+
+import android.system.ErrnoException;
+import android.system.Os;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * Runs independent file verifications at the same time. Files are grouped
+ * by the storage device they are on (st_dev) and each device works on at
+ * most perDevice of them at once, so flash storage that serves several
+ * streams gets them while a single slow card is not made to seek between
+ * files. Progress of everything submitted is reported as one. Once the
+ * run's CancelToken is cancelled, jobs still queued are skipped (their
+ * outcome is null) and the ones running are handed it to stop early.
+ */
+public class HashScheduler {
+    public interface Job<T> {
+        T run(CancelToken cancelToken, DeltaInfo.ProgressListener progressListener);
+    }
+
+    public interface ProgressListener {
+        void onProgress(String filename, float progress, long current, long total);
+    }
+
+    private final int perDevice;
+    private final CancelToken cancelToken;
+    private final ProgressListener progressListener;
+    private final Map<Long, ExecutorService> executors = new HashMap<>();
+    // current, total per submitted job
+    private final List<long[]> progress = new ArrayList<>();
+
+    public HashScheduler(int perDevice, CancelToken cancelToken,
+                         ProgressListener progressListener) {
+        this.perDevice = Math.max(1, perDevice);
+        this.cancelToken = cancelToken;
+        this.progressListener = progressListener;
+    }
+
+    private static long getDevice(File file) {
+        File f = file.getAbsoluteFile();
+        while (f != null) {
+            try {
+                return Os.stat(f.getPath()).st_dev;
+            } catch (ErrnoException e) {
+                // not there (yet), the directory it would be in will do
+                f = f.getParentFile();
+            }
+        }
+        return -1;
+    }
+
+    // Queue job, which verifies file. Jobs on the same device start in the
+    // order they were submitted
+    public synchronized <T> Future<T> submit(final File file, final Job<T> job) {
+        final long[] jobProgress = new long[2];
+        progress.add(jobProgress);
+
+        final DeltaInfo.ProgressListener jobProgressListener = new DeltaInfo.ProgressListener() {
+            @Override
+            public void onProgress(float progress, long current, long total) {
+                report(file.getName(), jobProgress, current, total);
+            }
+
+            public void setStatus(String s) {
+                // do nothing
+            }
+        };
+
+        long device = getDevice(file);
+        ExecutorService executor = executors.get(device);
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(perDevice);
+            executors.put(device, executor);
+        }
+        return executor.submit(() -> cancelToken.isCancelled() ? null
+                : job.run(cancelToken, jobProgressListener));
+    }
+
+    private synchronized void report(String filename, long[] jobProgress, long current, long total) {
+        jobProgress[0] = current;
+        jobProgress[1] = total;
+        if (progressListener == null)
+            return;
+
+        long sumCurrent = 0;
+        long sumTotal = 0;
+        for (long[] p : progress) {
+            sumCurrent += p[0];
+            sumTotal += p[1];
+        }
+        progressListener.onProgress(filename,
+                (sumTotal == 0) ? 0f : ((float) sumCurrent / (float) sumTotal) * 100f,
+                sumCurrent, sumTotal);
+    }
+
+    // The outcome of a submitted job, null if it failed
+    public static <T> T get(Future<T> job) {
+        try {
+            return job.get();
+        } catch (InterruptedException | ExecutionException e) {
+            Logger.ex(e);
+            return null;
+        }
+    }
+
+    // Queued jobs still finish, the threads go away after. Call once
+    // nothing more will be submitted
+    public synchronized void shutdown() {
+        for (ExecutorService executor : executors.values())
+            executor.shutdown();
+        executors.clear();
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2021 Yet Another AOSP Project
+ */
+/*
+ * This file is part of OpenDelta.
+ *
+ * OpenDelta is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDelta is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenDelta. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.opendelta;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/*
+ * Remembers ETag/Last-Modified and the body of small metadata responses per
+ * URL, so the next request for the same URL can be made conditional and a
+ * 304 answered from here. Validators are kept in SharedPreferences, bodies
+ * in files under the cache directory, so they are only read when used.
+ * Everything is dropped when the installed version changes, as what we
+ * concluded from these responses no longer holds then.
+ */
+public class HttpCache {
+    private static final String PREFS_NAME = "http_cache";
+    private static final String KEY_VERSION = "version";
+    private static final String SUFFIX_ETAG = "|etag";
+    private static final String SUFFIX_LAST_MODIFIED = "|last_modified";
+    private static final int MAX_BODY = 256 * 1024;
+
+    private final SharedPreferences prefs;
+    private final File dir;
+
+    public HttpCache(Context context, String version) {
+        prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        dir = new File(context.getCacheDir(), PREFS_NAME);
+        if (!version.equals(prefs.getString(KEY_VERSION, null))) {
+            prefs.edit().clear().putString(KEY_VERSION, version).apply();
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File f : files)
+                    f.delete();
+            }
+        }
+        dir.mkdirs();
+    }
+
+    private File getBodyFile(String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return new File(dir, FileHasher.toHex(
+                    digest.digest(url.getBytes(StandardCharsets.UTF_8))));
+        } catch (NoSuchAlgorithmException e) {
+            Logger.ex(e);
+            return new File(dir, Integer.toHexString(url.hashCode()));
+        }
+    }
+
+    // Call before connecting
+    public void addValidators(HttpURLConnection urlConnection, String url) {
+        if (!getBodyFile(url).exists())
+            return;
+        String eTag = prefs.getString(url + SUFFIX_ETAG, null);
+        String lastModified = prefs.getString(url + SUFFIX_LAST_MODIFIED, null);
+        if (eTag != null)
+            urlConnection.setRequestProperty("If-None-Match", eTag);
+        if (lastModified != null)
+            urlConnection.setRequestProperty("If-Modified-Since", lastModified);
+    }
+
+    public String getBody(String url) {
+        File f = getBodyFile(url);
+        if (!f.exists())
+            return null;
+        try {
+            return new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            Logger.ex(e);
+            return null;
+        }
+    }
+
+    public void put(String url, HttpURLConnection urlConnection, String body) {
+        String eTag = urlConnection.getHeaderField("ETag");
+        String lastModified = urlConnection.getHeaderField("Last-Modified");
+        if (((eTag == null) && (lastModified == null)) || (body.length() > MAX_BODY)) {
+            remove(url);
+            return;
+        }
+
+        // written aside and renamed, a body is either there whole or not
+        File f = getBodyFile(url);
+        File tmp = new File(f.getPath() + ".tmp");
+        try (FileOutputStream os = new FileOutputStream(tmp)) {
+            os.write(body.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Logger.ex(e);
+            tmp.delete();
+            remove(url);
+            return;
+        }
+        if (!tmp.renameTo(f)) {
+            tmp.delete();
+            remove(url);
+            return;
+        }
+        prefs.edit()
+                .putString(url + SUFFIX_ETAG, eTag)
+                .putString(url + SUFFIX_LAST_MODIFIED, lastModified)
+                .apply();
+    }
+
+    public void remove(String url) {
+        getBodyFile(url).delete();
+        prefs.edit()
+                .remove(url + SUFFIX_ETAG)
+                .remove(url + SUFFIX_LAST_MODIFIED)
+                .apply();
+    }
+}
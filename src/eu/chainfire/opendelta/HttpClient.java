@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2021 Yet Another AOSP Project
+ */
+/*
+ * This file is part of OpenDelta.
+ *
+ * OpenDelta is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDelta is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenDelta. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.opendelta;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import javax.net.ssl.HttpsURLConnection;
+
+/*
+ * Single place all connections are made through, so they are handed back
+ * to the keep-alive pool properly. The platform only pools a connection
+ * once its response body has been read to the end and closed,
+ * disconnect() throws the socket away - use release() instead. The pool
+ * and TLS session cache themselves are process wide, they are set up in
+ * Application.
+ *
+ * HttpsURLConnection speaks HTTP/1.1 only, so reuse here means one request
+ * at a time per pooled connection, not HTTP/2 multiplexing.
+ */
+public class HttpClient {
+    private static final int DRAIN_MAX = 64 * 1024;
+
+    private static HttpClient instance = null;
+
+    public static synchronized HttpClient getInstance() {
+        if (instance == null) {
+            instance = new HttpClient();
+        }
+        return instance;
+    }
+
+    private HttpClient() {
+    }
+
+    public HttpsURLConnection open(String urlStr) throws IOException {
+        return (HttpsURLConnection) new URL(urlStr).openConnection();
+    }
+
+    /*
+     * Done with this connection. Whatever is left of a short body is read
+     * so the connection can go back to the pool, anything larger is not
+     * worth the wait and gets dropped.
+     */
+    public void release(HttpURLConnection urlConnection) {
+        if (urlConnection == null)
+            return;
+        try {
+            InputStream is = (urlConnection.getResponseCode() >= 400)
+                    ? urlConnection.getErrorStream() : urlConnection.getInputStream();
+            if (is == null)
+                return;
+            byte[] buffer = new byte[8192];
+            int drained = 0;
+            int r;
+            while ((r = is.read(buffer)) > 0) {
+                drained += r;
+                if (drained > DRAIN_MAX) {
+                    urlConnection.disconnect();
+                    return;
+                }
+            }
+            is.close();
+        } catch (IOException e) {
+            // Broken connection, not reusable
+            urlConnection.disconnect();
+        }
+    }
+}
@@ -21,12 +21,96 @@
 
 package eu.chainfire.opendelta;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 public class Native {
     static {
         System.loadLibrary("opendelta");
     }
 
-    public static native int zipadjust(String filenameIn, String filenameOut, int decompress);
+    // Progress counters native code bumps as it goes, see progress.h. The
+    // progress arguments below take one of these, or null. Usually handed
+    // out by a CancelToken, which can then stop the operation
+    private static final int PROGRESS_IN = 0;
+    private static final int PROGRESS_OUT = 8;
+    private static final int PROGRESS_CANCEL = 16;
+
+    public static ByteBuffer newProgress() {
+        return ByteBuffer.allocateDirect(24).order(ByteOrder.nativeOrder());
+    }
+
+    // Have the native operation using progress fail as soon as it notices
+    public static void cancelProgress(ByteBuffer progress) {
+        progress.putLong(PROGRESS_CANCEL, 1);
+    }
+
+    // Bytes consumed from the input so far
+    public static long getProgressIn(ByteBuffer progress) {
+        return progress.getLong(PROGRESS_IN);
+    }
+
+    // Bytes written to the output so far
+    public static long getProgressOut(ByteBuffer progress) {
+        return progress.getLong(PROGRESS_OUT);
+    }
+
+    // The sha256 arguments take a byte[32] that receives the SHA-256 of the
+    // output as it was written, or null. Only filled in on success
+
+    // Entries are written by up to threads threads at once, the output is
+    // identical whatever the number
+    public static native int zipadjust(String filenameIn, String filenameOut, int decompress,
+                                       int threads, ByteBuffer progress, byte[] sha256);
+
+    // unsignedSize is -1 to read the whole source, or the store size to read
+    // a store_signed source as the store ZIP it was signed from
+    public static native int dedelta(String filenameSource, long unsignedSize,
+                                     String filenameDelta, String filenameOut,
+                                     ByteBuffer progress, byte[] sha256);
+
+    // Apply a segmented delta (see delta.h), decoding up to threads
+    // segments at once
+    public static native int dedeltaSegmented(String filenameSource, long unsignedSize,
+                                              String filenameSegments, String filenameOut,
+                                              int threads, ByteBuffer progress, byte[] sha256);
+
+    // Apply a delta that keeps a prefix of the source, like a signature
+    // delta, by writing the rest over the source and renaming it to
+    // filenameOut. Only done if the result hashes to expect, otherwise the
+    // source is put back. 1 when done, 0 when not applicable or not matching
+    // (source untouched), -1 when the source got damaged
+    public static native int dedeltaAppend(String filenameSource, String filenameDelta,
+                                           String filenameOut, ByteBuffer progress,
+                                           byte[] expect, byte[] sha256);
+
+    // Merge the deltas, in order, into one and apply that to the source, so
+    // the output is written once instead of once per delta. All deltas are
+    // held in memory while merging
+    public static native int dedeltaMerge(String filenameSource, long unsignedSize,
+                                          String[] filenamesDelta, String filenameOut, ByteBuffer progress,
+                                          byte[] sha256);
+
+    // Streaming dedelta: feed the delta in order from a direct ByteBuffer,
+    // then close with finish = 1 to flush or 0 to abort. Output is removed
+    // unless close returns 1. Open with hash set to get a SHA-256 from close
+    public static native long dedeltaOpen(String filenameSource, long unsignedSize,
+                                          String filenameOut, ByteBuffer progress,
+                                          boolean hash);
+
+    public static native int dedeltaFeed(long handle, ByteBuffer buffer, int length);
+
+    public static native int dedeltaClose(long handle, int finish, byte[] sha256);
+
+    // SHA-256 of the whole file, read sequentially in large chunks and
+    // hashed with the CPU's SHA instructions where it has them. Progress in
+    // counts the bytes hashed
+    public static native int sha256File(String filename, ByteBuffer progress, byte[] sha256);
+
+    // Source blocks dedelta can't map are read into a cache of this many
+    // 256 KiB blocks. Takes effect for the next dedelta
+    public static native void setSourceCacheBlocks(int blocks);
 
-    public static native int dedelta(String filenameSource, String filenameDelta, String filenameOut);
+    // Cumulative source block requests: { cache hits, reads, mapped }
+    public static native long[] getSourceCacheStats();
 }
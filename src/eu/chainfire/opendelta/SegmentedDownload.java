@@ -0,0 +1,391 @@
+/*
+ * Copyright (C) 2021 Yet Another AOSP Project
+ */
+/*
+ * This file is part of OpenDelta.
+ *
+ * OpenDelta is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDelta is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenDelta. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.opendelta;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import javax.net.ssl.HttpsURLConnection;
+
+/*
+ * Fetches a single large file over several connections at once. The file is
+ * cut into fixed size chunks which workers pick up in order and write at
+ * their offset in a preallocated partial file. The number of workers starts
+ * low and is raised for as long as doing so still improves throughput.
+ *
+ * Chunks are hashed in order as soon as the prefix before them is complete,
+ * so the SHA-256 is ready at about the same time the last byte arrives.
+ */
+public class SegmentedDownload {
+    private static final long CHUNK_SIZE = 8L * 1024L * 1024L;
+    private static final long SAMPLE_MS = 2000L;
+    private static final int RETRIES = 3;
+    // wait before a retry, doubling each time up to the max
+    private static final long BACKOFF_MS = 500L;
+    private static final long BACKOFF_MAX_MS = 8000L;
+
+    public interface Connector {
+        // end is inclusive, ifRange may be null
+        HttpsURLConnection connect(long start, long end, String ifRange);
+    }
+
+    private final Connector connector;
+    private final BooleanSupplier stopped;
+    private final long length;
+    private final String eTag;
+    private final String lastModified;
+
+    private DownloadState state;
+    private FileChannel channel;
+    private String validator;
+    private final AtomicLong received = new AtomicLong(0);
+    private final AtomicInteger workers = new AtomicInteger(0);
+    private volatile int targetWorkers;
+    private volatile boolean failed;
+    private volatile boolean changed;
+    private int nextChunk;
+    private boolean[] taken;
+
+    private SegmentedDownload(Connector connector, BooleanSupplier stopped, long length,
+                              String eTag, String lastModified) {
+        this.connector = connector;
+        this.stopped = stopped;
+        this.length = length;
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+    }
+
+    /*
+     * Ask for the first byte only. If the server answers with a proper
+     * partial response we know it does ranges and how large the file is,
+     * otherwise the caller should use a single plain connection.
+     */
+    public static SegmentedDownload probe(Connector connector, BooleanSupplier stopped) {
+        HttpsURLConnection urlConnection = connector.connect(0, 0, null);
+        if (urlConnection == null) {
+            return null;
+        }
+        try {
+            if (urlConnection.getResponseCode() != HttpsURLConnection.HTTP_PARTIAL) {
+                Logger.d("segmented: ranges not supported");
+                return null;
+            }
+            long length = DownloadState.getContentRangeTotal(
+                    urlConnection.getHeaderField("Content-Range"));
+            if (length <= CHUNK_SIZE) {
+                // not worth it
+                return null;
+            }
+            SegmentedDownload ret = new SegmentedDownload(connector, stopped, length,
+                    urlConnection.getHeaderField("ETag"),
+                    urlConnection.getHeaderField("Last-Modified"));
+            ret.drain(urlConnection.getInputStream());
+            return ret;
+        } catch (IOException e) {
+            Logger.ex(e);
+            return null;
+        } finally {
+            HttpClient.getInstance().release(urlConnection);
+        }
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    /*
+     * Reuse the chunks recorded in state if they belong to this exact file,
+     * start from scratch otherwise. Returns the number of bytes still needed.
+     */
+    public long prepare(DownloadState state) {
+        if (!state.isSegmented() || (state.getChunkSize() != CHUNK_SIZE)
+                || !state.matches(length, DownloadState.getValidator(eTag, lastModified))) {
+            state.delete();
+            state.resetSegmented(length, eTag, lastModified, CHUNK_SIZE);
+        } else {
+            Logger.d("segmented: resume with %d bytes present", state.getDone());
+        }
+        return length - state.getDone();
+    }
+
+    private void drain(InputStream is) throws IOException {
+        byte[] buffer = new byte[1024];
+        while (is.read(buffer) > 0) ;
+    }
+
+    /*
+     * Download into state's partial file, which must have been passed to
+     * prepare() first. Any chunks the state already
+     * records as present are only read back for hashing. Returns true once
+     * every chunk is present and digest (if any) covers the whole file.
+     */
+    public boolean download(DownloadState state, int maxWorkers, MessageDigest digest,
+                            DeltaInfo.ProgressListener progressListener) {
+        this.state = state;
+        validator = state.getValidator();
+
+        int chunkCount = state.getChunkCount();
+        taken = new boolean[chunkCount];
+        nextChunk = 0;
+        for (int i = 0; i < chunkCount; i++) {
+            taken[i] = state.isChunkDone(i);
+        }
+        long present = state.getDone();
+        received.set(0);
+        failed = false;
+        changed = false;
+
+        try (RandomAccessFile raf = new RandomAccessFile(state.getPartialFile(), "rw")) {
+            raf.setLength(length);
+            channel = raf.getChannel();
+
+            targetWorkers = Math.min(2, maxWorkers);
+            for (int i = 0; i < targetWorkers; i++) {
+                startWorker();
+            }
+
+            ByteBuffer hashBuffer = ByteBuffer.allocate(256 * 1024);
+            int hashed = 0;
+            long hashedBytes = 0;
+            long lastSample = SystemClock.elapsedRealtime();
+            long lastReceived = 0;
+            double bestRate = 0;
+            boolean adapting = true;
+            long lastSaved = present;
+
+            while (true) {
+                boolean running = workers.get() > 0;
+
+                while ((hashed < chunkCount) && state.isChunkDone(hashed)) {
+                    long pos = (long) hashed * CHUNK_SIZE;
+                    long end = Math.min(pos + CHUNK_SIZE, length);
+                    while (pos < end) {
+                        hashBuffer.clear();
+                        hashBuffer.limit((int) Math.min(hashBuffer.capacity(), end - pos));
+                        int r = channel.read(hashBuffer, pos);
+                        if (r <= 0)
+                            throw new IOException("short read while hashing");
+                        if (digest != null)
+                            digest.update(hashBuffer.array(), 0, r);
+                        pos += r;
+                    }
+                    hashedBytes = end;
+                    hashed++;
+                }
+
+                long current = present + received.get();
+                if (progressListener != null)
+                    progressListener.onProgress(((float) current / (float) length) * 100f,
+                            current, length);
+
+                if (!changed && (state.getDone() - lastSaved >= CHUNK_SIZE)) {
+                    state.save();
+                    lastSaved = state.getDone();
+                }
+
+                if (!running || failed || stopped.getAsBoolean())
+                    break;
+
+                long now = SystemClock.elapsedRealtime();
+                if (adapting && (now - lastSample >= SAMPLE_MS)) {
+                    long recv = received.get();
+                    double rate = (double) (recv - lastReceived) / (double) (now - lastSample);
+                    if (rate > bestRate * 1.1) {
+                        // the last worker we added helped, try one more
+                        bestRate = rate;
+                        if (targetWorkers < maxWorkers) {
+                            targetWorkers++;
+                            startWorker();
+                            Logger.d("segmented: %d connections", targetWorkers);
+                        } else {
+                            adapting = false;
+                        }
+                    } else if (targetWorkers > 1) {
+                        // no gain, retire the last one again and stay there
+                        targetWorkers--;
+                        adapting = false;
+                        Logger.d("segmented: settled at %d connections", targetWorkers);
+                    }
+                    lastSample = now;
+                    lastReceived = recv;
+                }
+
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    failed = true;
+                }
+            }
+
+            // make sure the workers are gone before the channel closes
+            failed = failed || (hashed < chunkCount);
+            while (workers.get() > 0) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    // keep waiting
+                }
+            }
+            saveOrDelete();
+
+            return (hashed == chunkCount) && (hashedBytes == length);
+        } catch (IOException e) {
+            Logger.ex(e);
+            failed = true;
+            while (workers.get() > 0) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException ie) {
+                    // keep waiting
+                }
+            }
+            saveOrDelete();
+            return false;
+        } finally {
+            channel = null;
+        }
+    }
+
+    private void saveOrDelete() {
+        if (changed) {
+            state.delete();
+        } else {
+            state.save();
+        }
+    }
+
+    private synchronized int takeChunk() {
+        while ((nextChunk < taken.length) && taken[nextChunk])
+            nextChunk++;
+        if (nextChunk >= taken.length)
+            return -1;
+        taken[nextChunk] = true;
+        return nextChunk;
+    }
+
+    // Leave if there are more workers than wanted. The count is lowered by
+    // compare-and-set, so workers noticing at the same time don't all go
+    private boolean retire() {
+        while (true) {
+            int current = workers.get();
+            if (current <= targetWorkers)
+                return false;
+            if (workers.compareAndSet(current, current - 1))
+                return true;
+        }
+    }
+
+    private void startWorker() {
+        workers.incrementAndGet();
+        new Thread(() -> {
+            boolean retired = false;
+            try {
+                while (!failed && !stopped.getAsBoolean()) {
+                    if (retire()) {
+                        retired = true;
+                        break;
+                    }
+                    int chunk = takeChunk();
+                    if (chunk < 0)
+                        break;
+                    if (!fetchChunk(chunk)) {
+                        failed = true;
+                        break;
+                    }
+                }
+            } finally {
+                if (!retired)
+                    workers.decrementAndGet();
+            }
+        }, "OpenDelta Segment").start();
+    }
+
+    // Wait before retry attempt, false if we should give up instead
+    private boolean backoff(int attempt) {
+        long until = SystemClock.elapsedRealtime()
+                + Math.min(BACKOFF_MAX_MS, BACKOFF_MS << (attempt - 1));
+        while (SystemClock.elapsedRealtime() < until) {
+            if (failed || stopped.getAsBoolean())
+                return false;
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean fetchChunk(int chunk) {
+        long pos = (long) chunk * CHUNK_SIZE;
+        long end = Math.min(pos + CHUNK_SIZE, length) - 1;
+        byte[] buffer = new byte[64 * 1024];
+
+        for (int attempt = 0; attempt < RETRIES; attempt++) {
+            if ((attempt > 0) && !backoff(attempt))
+                return false;
+            HttpsURLConnection urlConnection = connector.connect(pos, end, validator);
+            if (urlConnection == null)
+                continue;
+            try {
+                if (urlConnection.getResponseCode() != HttpsURLConnection.HTTP_PARTIAL) {
+                    // If-Range did not match, the file changed under us
+                    Logger.d("segmented: file changed on server");
+                    changed = true;
+                    return false;
+                }
+                InputStream is = urlConnection.getInputStream();
+                int r;
+                while ((pos <= end)
+                        && ((r = is.read(buffer, 0, (int) Math.min(buffer.length, end - pos + 1))) > 0)) {
+                    if (failed || stopped.getAsBoolean())
+                        return false;
+                    ByteBuffer src = ByteBuffer.wrap(buffer, 0, r);
+                    long at = pos;
+                    while (src.hasRemaining()) {
+                        at += channel.write(src, at);
+                    }
+                    pos += r;
+                    received.addAndGet(r);
+                }
+                if (pos > end) {
+                    state.setChunkDone(chunk);
+                    return true;
+                }
+            } catch (IOException e) {
+                // retry from where we got cut off
+                Logger.ex(e);
+            } finally {
+                HttpClient.getInstance().release(urlConnection);
+            }
+        }
+        return false;
+    }
+}
@@ -24,6 +24,7 @@ package eu.chainfire.opendelta;
 
 import android.Manifest;
 import android.annotation.SuppressLint;
+import android.app.ActivityManager;
 import android.app.AlarmManager;
 import android.app.Notification;
 import android.app.NotificationChannel;
@@ -53,21 +54,31 @@ import org.json.JSONObject;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.reflect.Method;
-import java.math.BigInteger;
-import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.zip.ZipFile;
 
 import javax.net.ssl.HttpsURLConnection;
@@ -139,6 +150,8 @@ public class UpdateService extends Service implements OnNetworkStateListener,
             "eu.chainfire.opendelta.action.ACTION_CLEAR_INSTALL_RUNNING";
     private static final int HTTP_READ_TIMEOUT = 30000;
     private static final int HTTP_CONNECTION_TIMEOUT = 30000;
+    // how often the resume record of a running download is updated
+    private static final long DOWNLOAD_STATE_INTERVAL = 4L * 1024L * 1024L;
     private static final String ACTION_CHECK = "eu.chainfire.opendelta.action.CHECK";
     private static final String ACTION_FLASH = "eu.chainfire.opendelta.action.FLASH";
     private static final String ACTION_ALARM = "eu.chainfire.opendelta.action.ALARM";
@@ -157,6 +170,9 @@ public class UpdateService extends Service implements OnNetworkStateListener,
     private static final long PREF_LAST_SNOOZE_TIME_DEFAULT = 0L;
     // we only snooze until a new build
     private static final String PREF_SNOOZE_UPDATE_NAME = "last_snooze_update";
+    private static final String PREF_UP_TO_DATE_VERSION = "up_to_date_version";
+
+    private static final String DELTA_CHAIN_MANIFEST = "chain.json";
     private static final long SNOOZE_MS = 24 * AlarmManager.INTERVAL_HOUR;
     private Config config;
     private HandlerThread handlerThread;
@@ -169,10 +185,14 @@ public class UpdateService extends Service implements OnNetworkStateListener,
     private PowerManager.WakeLock wakeLock = null;
     private WifiManager.WifiLock wifiLock = null;
     private NotificationManager notificationManager = null;
-    private boolean stopDownload;
+    private volatile CancelToken cancelToken = new CancelToken();
     private boolean updateRunning;
     private int failedUpdateCount;
     private SharedPreferences prefs = null;
+    private HttpCache httpCache = null;
+    private HttpClient httpClient = null;
+    private HashCache hashCache = null;
+    private DeltaInfoCache deltaInfoCache = null;
     private Notification.Builder mBuilder;
     private boolean isProgressNotificationDismissed = false;
     // url override
@@ -273,12 +293,25 @@ public class UpdateService extends Service implements OnNetworkStateListener,
         return null;
     }
 
+    private int getSourceCacheBlocks() {
+        // 1/256th of RAM, between 1 and 64 MiB, in 256 KiB blocks
+        ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+        ((ActivityManager) getSystemService(ACTIVITY_SERVICE)).getMemoryInfo(memoryInfo);
+        long budget = Math.max(1L << 20, Math.min(64L << 20, memoryInfo.totalMem / 256));
+        return (int) (budget / (256 * 1024));
+    }
+
     @SuppressWarnings("deprecation")
     @Override
     public void onCreate() {
         super.onCreate();
 
         config = Config.getInstance(this);
+        httpCache = new HttpCache(this, config.getVersion());
+        httpClient = HttpClient.getInstance();
+        hashCache = HashCache.getInstance(this);
+        deltaInfoCache = new DeltaInfoCache(this);
+        Native.setSourceCacheBlocks(getSourceCacheBlocks());
 
         wakeLock = ((PowerManager) getSystemService(POWER_SERVICE))
                 .newWakeLock(
@@ -443,7 +476,7 @@ public class UpdateService extends Service implements OnNetworkStateListener,
                     PREF_AUTO_UPDATE_METERED_NETWORKS, false));
         }
         if (PREF_STOP_DOWNLOAD.equals(key)) {
-            stopDownload = true;
+            cancelToken.cancel();
         }
         if (SettingsActivity.PREF_AUTO_DOWNLOAD.equals(key)) {
             int autoDownload = getAutoDownloadValue();
@@ -467,7 +500,7 @@ public class UpdateService extends Service implements OnNetworkStateListener,
         if (isErrorState(this.state)) {
             return;
         }
-        if (stopDownload) {
+        if (cancelToken.isCancelled()) {
             // stop download is only possible in the download step
             // that means must have done a check step before
             // so just fall back to this instead to show none state
@@ -617,20 +650,54 @@ public class UpdateService extends Service implements OnNetworkStateListener,
         notificationManager.cancel(NOTIFICATION_ERROR);
     }
 
+    private HttpsURLConnection createHttpsRequest(String urlStr) throws IOException {
+        HttpsURLConnection urlConnection = httpClient.open(urlStr);
+        urlConnection.setConnectTimeout(HTTP_CONNECTION_TIMEOUT);
+        urlConnection.setReadTimeout(HTTP_READ_TIMEOUT);
+        urlConnection.setRequestMethod("GET");
+        urlConnection.setDoInput(true);
+        return urlConnection;
+    }
+
     private HttpsURLConnection setupHttpsRequest(String urlStr) {
-        URL url;
+        return setupHttpsRequest(urlStr, 0, -1, null);
+    }
+
+    private HttpsURLConnection setupHttpsRequest(String urlStr, long rangeStart,
+                                                 String ifRange) {
+        return setupHttpsRequest(urlStr, rangeStart, -1, ifRange);
+    }
+
+    private HttpsURLConnection setupHttpsRequest(String urlStr, long rangeStart,
+                                                 long rangeEnd, String ifRange) {
+        return setupHttpsRequest(urlStr, rangeStart, rangeEnd, ifRange, null);
+    }
+
+    // rangeEnd is inclusive, -1 for up to the end of the file. status (if not
+    // null) receives the HTTP status, -1 on connection failure
+    private HttpsURLConnection setupHttpsRequest(String urlStr, long rangeStart,
+                                                 long rangeEnd, String ifRange,
+                                                 int[] status) {
         HttpsURLConnection urlConnection;
+        if (status != null)
+            status[0] = -1;
         try {
-            url = new URL(urlStr);
-            urlConnection = (HttpsURLConnection) url.openConnection();
-            urlConnection.setConnectTimeout(HTTP_CONNECTION_TIMEOUT);
-            urlConnection.setReadTimeout(HTTP_READ_TIMEOUT);
-            urlConnection.setRequestMethod("GET");
-            urlConnection.setDoInput(true);
+            urlConnection = createHttpsRequest(urlStr);
+            boolean range = (rangeStart > 0) || (rangeEnd >= 0);
+            if (range) {
+                urlConnection.setRequestProperty("Range", "bytes=" + rangeStart + "-"
+                        + ((rangeEnd >= 0) ? String.valueOf(rangeEnd) : ""));
+                if (ifRange != null)
+                    urlConnection.setRequestProperty("If-Range", ifRange);
+            }
             urlConnection.connect();
             int code = urlConnection.getResponseCode();
-            if (code != HttpsURLConnection.HTTP_OK) {
+            if (status != null)
+                status[0] = code;
+            if ((code != HttpsURLConnection.HTTP_OK)
+                    && !(range && (code == HttpsURLConnection.HTTP_PARTIAL))) {
                 Logger.d("response: %d", code);
+                httpClient.release(urlConnection);
                 return null;
             }
             return urlConnection;
@@ -640,13 +707,24 @@ public class UpdateService extends Service implements OnNetworkStateListener,
         }
     }
 
-    private byte[] downloadUrlMemory(String url) {
+    // status (if not null) receives the HTTP status, -1 on connection failure
+    private byte[] downloadUrlMemory(String url, int[] status) {
         Logger.d("download: %s", url);
 
         HttpsURLConnection urlConnection = null;
         try {
-            urlConnection = setupHttpsRequest(url);
-            if (urlConnection == null) {
+            try {
+                urlConnection = createHttpsRequest(url);
+                urlConnection.connect();
+                int code = urlConnection.getResponseCode();
+                if (status != null)
+                    status[0] = code;
+                if (code != HttpsURLConnection.HTTP_OK) {
+                    Logger.d("response: %d", code);
+                    return null;
+                }
+            } catch (IOException e) {
+                Logger.i("Failed to connect to server");
                 return null;
             }
 
@@ -667,21 +745,45 @@ public class UpdateService extends Service implements OnNetworkStateListener,
             // Download failed for any number of reasons, timeouts, connection
             // drops, etc. Just log it in debugging mode.
             Logger.ex(e);
+            if (status != null)
+                status[0] = -1;
             return null;
         } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
-            }
+            httpClient.release(urlConnection);
         }
     }
 
     private String downloadUrlMemoryAsString(String url) {
+        return downloadUrlMemoryAsString(url, null);
+    }
+
+    // Conditional request, answered from httpCache on 304. notModified
+    // (if not null) tells the caller whether that happened.
+    private String downloadUrlMemoryAsString(String url, boolean[] notModified) {
         Logger.d("download: %s", url);
 
         HttpsURLConnection urlConnection = null;
         try {
-            urlConnection = setupHttpsRequest(url);
-            if (urlConnection == null) {
+            try {
+                urlConnection = createHttpsRequest(url);
+                httpCache.addValidators(urlConnection, url);
+                urlConnection.connect();
+                int code = urlConnection.getResponseCode();
+                if (code == HttpsURLConnection.HTTP_NOT_MODIFIED) {
+                    String body = httpCache.getBody(url);
+                    if (body != null) {
+                        Logger.d("not modified: %s", url);
+                        if (notModified != null)
+                            notModified[0] = true;
+                        return body;
+                    }
+                }
+                if (code != HttpsURLConnection.HTTP_OK) {
+                    Logger.d("response: %d", code);
+                    return null;
+                }
+            } catch (IOException e) {
+                Logger.i("Failed to connect to server");
                 return null;
             }
 
@@ -698,21 +800,27 @@ public class UpdateService extends Service implements OnNetworkStateListener,
                 return null;
             }
 
-            return new String(bytes, StandardCharsets.UTF_8);
+            String body = new String(bytes, StandardCharsets.UTF_8);
+            httpCache.put(url, urlConnection, body);
+            return body;
         } catch (Exception e) {
             // Download failed for any number of reasons, timeouts, connection
             // drops, etc. Just log it in debugging mode.
             Logger.ex(e);
             return null;
         } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
-            }
+            httpClient.release(urlConnection);
         }
     }
 
     private boolean downloadUrlFile(String url, File f, String matchSUM,
                                     DeltaInfo.ProgressListener progressListener) {
+        return downloadUrlFile(url, f, matchSUM, progressListener, false);
+    }
+
+    private boolean downloadUrlFile(String url, File f, String matchSUM,
+                                    DeltaInfo.ProgressListener progressListener,
+                                    boolean checkFreeSpace) {
         Logger.d("download: %s", url);
 
         HttpsURLConnection urlConnection = null;
@@ -729,21 +837,105 @@ public class UpdateService extends Service implements OnNetworkStateListener,
         if (f.exists())
             f.delete();
 
+        // In resume mode we write to a partial file next to the target, which
+        // is kept around together with its sidecar record when we get cut off
+        DownloadState downloadState = null;
+        File out = f;
+        long offset = 0;
+        if (config.getDownloadResume()) {
+            downloadState = DownloadState.load(f, url);
+            out = downloadState.getPartialFile();
+            if (!downloadState.prepare(digest)) {
+                downloadState.delete();
+                downloadState.reset(-1, null, null);
+                if (digest != null)
+                    digest.reset();
+            }
+            offset = downloadState.getDone();
+            if (offset > 0)
+                Logger.d("resume: %s @ %d", f.getName(), offset);
+        }
+
+        long recv = offset;
+        boolean keepPartial = true;
         try {
-            urlConnection = setupHttpsRequest(url);
+            int[] status = new int[]{-1};
+            urlConnection = setupHttpsRequest(url, offset, -1,
+                    (offset > 0) ? downloadState.getValidator() : null, status);
+            if ((urlConnection == null) && (offset > 0)
+                    && ((status[0] == -1) || (status[0] >= 500))) {
+                // Network down or server trouble, the partial file is still
+                // good for the next attempt
+                Logger.d("resume failed (%d), keeping partial download", status[0]);
+                return false;
+            }
+            if ((urlConnection == null) && (offset > 0)) {
+                // Range not satisfiable or otherwise refused, start over
+                Logger.d("resume refused, starting over");
+                downloadState.delete();
+                downloadState.reset(-1, null, null);
+                if (digest != null)
+                    digest.reset();
+                offset = 0;
+                recv = 0;
+                urlConnection = setupHttpsRequest(url);
+            }
             if (urlConnection == null) {
                 return false;
             }
-            long len = urlConnection.getContentLength();
-            long recv = 0;
+
+            long len;
+            if (urlConnection.getResponseCode() == HttpsURLConnection.HTTP_PARTIAL) {
+                len = DownloadState.getContentRangeTotal(
+                        urlConnection.getHeaderField("Content-Range"));
+                if (len != downloadState.getLength()) {
+                    // Validator matched but the size did not, don't trust
+                    // any of it. The next attempt starts from scratch.
+                    Logger.d("resume size mismatch: %d != %d", len, downloadState.getLength());
+                    downloadState.delete();
+                    downloadState.reset(-1, null, null);
+                    return false;
+                }
+            } else {
+                if (offset > 0) {
+                    // Server ignored the range or the file changed, either
+                    // way we are receiving the whole file again
+                    Logger.d("resume not honored, starting over");
+                    if (digest != null)
+                        digest.reset();
+                    offset = 0;
+                    recv = 0;
+                }
+                len = urlConnection.getContentLengthLong();
+                if (downloadState != null) {
+                    downloadState.reset(len, urlConnection.getHeaderField("ETag"),
+                            urlConnection.getHeaderField("Last-Modified"));
+                }
+            }
+
+            if (progressListener != null)
+                progressListener.onProgress(((float) recv / (float) len) * 100f, recv, len);
+
+            if (checkFreeSpace) {
+                long freeSpace = (new StatFs(config.getPathBase()))
+                        .getAvailableBytes();
+                if (freeSpace < len - offset) {
+                    updateState(STATE_ERROR_DISK_SPACE, null, freeSpace, len, null,
+                            null);
+                    Logger.d("not enough space!");
+                    return false;
+                }
+            }
+
             if ((len > 0) && (len < 4L * 1024L * 1024L * 1024L)) {
                 byte[] buffer = new byte[262144];
+                long saved = recv;
 
                 InputStream is = urlConnection.getInputStream();
-                try (FileOutputStream os = new FileOutputStream(f, false)) {
+                try (FileOutputStream os = new FileOutputStream(out, offset > 0)) {
                     int r;
                     while ((r = is.read(buffer)) > 0) {
-                        if (stopDownload) {
+                        if (cancelToken.isCancelled()) {
                             return false;
                         }
                         os.write(buffer, 0, r);
@@ -751,6 +943,11 @@ public class UpdateService extends Service implements OnNetworkStateListener,
                             digest.update(buffer, 0, r);
 
                         recv += r;
+                        if ((downloadState != null) && (recv - saved >= DOWNLOAD_STATE_INTERVAL)) {
+                            downloadState.setDone(recv);
+                            downloadState.save();
+                            saved = recv;
+                        }
                         if (progressListener != null)
                             progressListener.onProgress(
                                     ((float) recv / (float) len) * 100f, recv,
@@ -758,20 +955,20 @@ public class UpdateService extends Service implements OnNetworkStateListener,
                     }
                 }
 
-                if (digest != null) {
-                    StringBuilder SUM = new StringBuilder(new BigInteger(1, digest.digest())
-                            .toString(16).toLowerCase(Locale.ENGLISH));
-                    while (SUM.length() < 64)
-                        SUM.insert(0, "0");
-                    boolean sumCheck = SUM.toString().equals(matchSUM);
-                    Logger.d("SUM=" + SUM + " matchSUM=" + matchSUM);
-                    Logger.d("SUM.length=" + SUM.length() +
-                            " matchSUM.length=" + matchSUM.length());
-                    if (!sumCheck) {
-                        Logger.i("SUM check failed for " + url);
-                    }
-                    return sumCheck;
+                if ((downloadState != null) && (recv < len)) {
+                    // Connection closed early, keep what we have
+                    Logger.d("download incomplete: %d of %d", recv, len);
+                    return false;
+                }
+                keepPartial = false;
+
+                if ((digest != null) && !checkDownloadSUM(digest, matchSUM, url)) {
+                    if (downloadState != null)
+                        downloadState.delete();
+                    return false;
                 }
+                if (downloadState != null)
+                    return downloadState.complete();
                 return true;
             }
             return false;
@@ -781,19 +978,59 @@ public class UpdateService extends Service implements OnNetworkStateListener,
             Logger.ex(e);
             return false;
         } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
+            if ((downloadState != null) && keepPartial) {
+                downloadState.setDone(recv);
+                downloadState.save();
             }
+            httpClient.release(urlConnection);
         }
     }
 
-    private boolean downloadUrlFileUnknownSize(String url, final File f,
-                                               String matchSUM) {
-        Logger.d("download: %s", url);
+    private boolean checkDownloadSUM(MessageDigest digest, String matchSUM, String url) {
+        return checkSUM(digest.digest(), matchSUM, url);
+    }
+
+    private boolean checkSUM(byte[] sum, String matchSUM, String url) {
+        String SUM = FileHasher.toHex(sum);
+        boolean sumCheck = SUM.equals(matchSUM);
+        Logger.d("SUM=" + SUM + " matchSUM=" + matchSUM);
+        Logger.d("SUM.length=" + SUM.length() +
+                " matchSUM.length=" + matchSUM.length());
+        if (!sumCheck) {
+            Logger.i("SUM check failed for " + url);
+        }
+        return sumCheck;
+    }
+
+    // Native code hashes the output as it writes it, compare that with what
+    // the step should have produced. A bad output is not left on disk, a good
+    // one is remembered so the next check doesn't read it again
+    private boolean checkOutputSUM(byte[] sum, String matchSUM, String filenameOut) {
+        if (checkSUM(sum, matchSUM, filenameOut)) {
+            File f = new File(filenameOut);
+            hashCache.put(f, HashCache.identify(f), matchSUM);
+            return true;
+        }
+        (new File(filenameOut)).delete();
+        return false;
+    }
+
+    /*
+     * Fetch a large file over several connections. Returns null if the
+     * server can't do it (no range support, too small), in which case the
+     * caller should fall back to a single connection.
+     */
+    private Boolean downloadUrlFileSegmented(final String url, File f, String matchSUM,
+                                             DeltaInfo.ProgressListener progressListener) {
+        SegmentedDownload download = SegmentedDownload.probe(
+                (start, end, ifRange) -> setupHttpsRequest(url, start, end, ifRange),
+                () -> cancelToken.isCancelled());
+        if (download == null) {
+            return null;
+        }
+        Logger.d("download segmented: %s", url);
 
-        HttpsURLConnection urlConnection = null;
         MessageDigest digest = null;
-        long len = 0;
         if (matchSUM != null) {
             try {
                 digest = MessageDigest.getInstance("SHA-256");
@@ -806,98 +1043,61 @@ public class UpdateService extends Service implements OnNetworkStateListener,
         if (f.exists())
             f.delete();
 
-        try {
-            updateState(STATE_ACTION_DOWNLOADING, 0f, 0L, 0L, f.getName(), null);
-            urlConnection = setupHttpsRequest(url);
-            if (urlConnection == null) {
-                return false;
-            }
-
-            len = urlConnection.getContentLength();
+        DownloadState downloadState = DownloadState.load(f, url);
+        long needed = download.prepare(downloadState);
 
-            updateState(STATE_ACTION_DOWNLOADING, 0f, 0L, len, f.getName(), null);
+        long freeSpace = (new StatFs(config.getPathBase())).getAvailableBytes();
+        if (freeSpace < needed) {
+            updateState(STATE_ERROR_DISK_SPACE, null, freeSpace, download.getLength(), null,
+                    null);
+            Logger.d("not enough space!");
+            return false;
+        }
 
-            long freeSpace = (new StatFs(config.getPathBase()))
-                    .getAvailableBytes();
-            if (freeSpace < len) {
-                updateState(STATE_ERROR_DISK_SPACE, null, freeSpace, len, null,
-                        null);
-                Logger.d("not enough space!");
-                return false;
-            }
+        if (!download.download(downloadState, config.getDownloadSegmentsMax(), digest,
+                progressListener)) {
+            return false;
+        }
 
-            final long[] last = new long[]{0, len, 0,
-                    SystemClock.elapsedRealtime()};
-            DeltaInfo.ProgressListener progressListener = new DeltaInfo.ProgressListener() {
-                @Override
-                public void onProgress(float progress, long current, long total) {
-                    current += last[0];
-                    total = last[1];
-                    progress = ((float) current / (float) total) * 100f;
-                    long now = SystemClock.elapsedRealtime();
-                    if (now >= last[2] + 16L) {
-                        updateState(STATE_ACTION_DOWNLOADING, progress,
-                                current, total, f.getName(),
-                                SystemClock.elapsedRealtime() - last[3]);
-                        last[2] = now;
-                    }
-                }
+        if ((digest != null) && !checkDownloadSUM(digest, matchSUM, url)) {
+            downloadState.delete();
+            return false;
+        }
+        return downloadState.complete();
+    }
 
-                public void setStatus(String s) {
-                    // do nothing
+    private boolean downloadUrlFileUnknownSize(String url, final File f,
+                                               String matchSUM) {
+        final long[] last = new long[]{0, 0, SystemClock.elapsedRealtime()};
+        DeltaInfo.ProgressListener progressListener = new DeltaInfo.ProgressListener() {
+            @Override
+            public void onProgress(float progress, long current, long total) {
+                last[1] = total;
+                long now = SystemClock.elapsedRealtime();
+                if (now >= last[0] + 16L) {
+                    updateState(STATE_ACTION_DOWNLOADING, progress,
+                            current, total, f.getName(),
+                            SystemClock.elapsedRealtime() - last[2]);
+                    last[0] = now;
                 }
-            };
-
-            long recv = 0;
-            if ((len > 0) && (len < 4L * 1024L * 1024L * 1024L)) {
-                byte[] buffer = new byte[262144];
-
-                InputStream is = urlConnection.getInputStream();
-                try (FileOutputStream os = new FileOutputStream(f, false)) {
-                    int r;
-                    while ((r = is.read(buffer)) > 0) {
-                        if (stopDownload) {
-                            return false;
-                        }
-                        os.write(buffer, 0, r);
-                        if (digest != null)
-                            digest.update(buffer, 0, r);
+            }
 
-                        recv += r;
-                        if (progressListener != null)
-                            progressListener.onProgress(
-                                    ((float) recv / (float) len) * 100f, recv,
-                                    len);
-                    }
-                }
+            public void setStatus(String s) {
+                // do nothing
+            }
+        };
 
-                if (digest != null) {
-                    StringBuilder SUM = new StringBuilder(new BigInteger(1, digest.digest())
-                            .toString(16).toLowerCase(Locale.ENGLISH));
-                    while (SUM.length() < 64)
-                        SUM.insert(0, "0");
-                    boolean sumCheck = SUM.toString().equals(matchSUM);
-                    Logger.d("SUM=" + SUM + " matchSUM=" + matchSUM);
-                    Logger.d("SUM.length=" + SUM.length() +
-                            " matchSUM.length=" + matchSUM.length());
-                    if (!sumCheck) {
-                        Logger.i("SUM check failed for " + url);
-                    }
-                    return sumCheck;
-                }
-                return true;
+        updateState(STATE_ACTION_DOWNLOADING, 0f, 0L, 0L, f.getName(), null);
+        try {
+            if (config.getDownloadResume() && (config.getDownloadSegmentsMax() > 1)) {
+                Boolean segmented = downloadUrlFileSegmented(url, f, matchSUM,
+                        progressListener);
+                if (segmented != null)
+                    return segmented;
             }
-            return false;
-        } catch (Exception e) {
-            // Download failed for any number of reasons, timeouts, connection
-            // drops, etc. Just log it in debugging mode.
-            Logger.ex(e);
-            return false;
+            return downloadUrlFile(url, f, matchSUM, progressListener, true);
         } finally {
-            updateState(STATE_ACTION_DOWNLOADING, 100f, len, len, null, null);
-            if (urlConnection != null) {
-                urlConnection.disconnect();
-            }
+            updateState(STATE_ACTION_DOWNLOADING, 100f, last[1], last[1], null, null);
         }
     }
 
@@ -918,9 +1118,25 @@ public class UpdateService extends Service implements OnNetworkStateListener,
             Logger.ex(e);
             return 0;
         } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
-            }
+            httpClient.release(urlConnection);
+        }
+    }
+
+    // HEAD request, returns the response code or -1 if we couldn't connect
+    private int getUrlStatus(String url) {
+        Logger.d("getUrlStatus: %s", url);
+
+        HttpsURLConnection urlConnection = null;
+        try {
+            urlConnection = createHttpsRequest(url);
+            urlConnection.setRequestMethod("HEAD");
+            urlConnection.connect();
+            return urlConnection.getResponseCode();
+        } catch (Exception e) {
+            Logger.ex(e);
+            return -1;
+        } finally {
+            httpClient.release(urlConnection);
         }
     }
 
@@ -946,12 +1162,16 @@ public class UpdateService extends Service implements OnNetworkStateListener,
         return false;
     }
 
-    private List<String> getNewestFullBuild() {
+    // With skipNotModified, a 304 returns null without parsing anything,
+    // notModified[0] tells it apart from an error
+    private List<String> getNewestFullBuild(boolean[] notModified, boolean skipNotModified) {
         Logger.d("Checking for latest full build");
 
         String url = config.getUrlBaseJson();
 
-        String buildData = downloadUrlMemoryAsString(url);
+        String buildData = downloadUrlMemoryAsString(url, notModified);
+        if (notModified[0] && skipNotModified)
+            return null;
         if (buildData == null || buildData.length() == 0) {
             updateState(STATE_ERROR_DOWNLOAD, null, null, null, url, null);
             return null;
@@ -1037,6 +1257,21 @@ public class UpdateService extends Service implements OnNetworkStateListener,
         };
     }
 
+    // Verifications during a check, reported as a single checking state
+    private HashScheduler newHashScheduler() {
+        final long[] last = new long[]{0, SystemClock.elapsedRealtime()};
+
+        return new HashScheduler(config.getHashConcurrency(), cancelToken,
+                (filename, progress, current, total) -> {
+                    long now = SystemClock.elapsedRealtime();
+                    if (now >= last[0] + 16L) {
+                        updateState(STATE_ACTION_CHECKING_SUM, progress, current, total,
+                                filename, now - last[1]);
+                        last[0] = now;
+                    }
+                });
+    }
+
     private long sizeOnDisk(long size) {
         // Assuming 256k block size here, should be future proof for a little
         // bit
@@ -1055,12 +1290,13 @@ public class UpdateService extends Service implements OnNetworkStateListener,
                 Logger.d("download: %s --> %s", url, fn);
 
                 if (downloadUrlFile(url, f, match.getSHA256(), progressListener)) {
+                    hashCache.put(f, HashCache.identify(f), match.getSHA256());
                     fileBase.setTag(fn);
                     Logger.d("success");
                     return true;
                 } else {
                     f.delete();
-                    if (stopDownload) {
+                    if (cancelToken.isCancelled()) {
                         Logger.d("download stopped");
                     } else {
                         updateState(STATE_ERROR_DOWNLOAD, null, null, null,
@@ -1079,9 +1315,8 @@ public class UpdateService extends Service implements OnNetworkStateListener,
         }
     }
 
-    private Thread getThreadedProgress(String filename, String display,
+    private Thread getThreadedProgress(ByteBuffer nativeProgress, String display,
                                        long start, long currentOut, long totalOut) {
-        final File _file = new File(filename);
         final String _display = display;
         final long _currentOut = currentOut;
         final long _totalOut = totalOut;
@@ -1090,7 +1325,7 @@ public class UpdateService extends Service implements OnNetworkStateListener,
         return new Thread(() -> {
             while (true) {
                 try {
-                    long current = _currentOut + _file.length();
+                    long current = _currentOut + Native.getProgressOut(nativeProgress);
                     updateState(STATE_ACTION_APPLYING_PATCH,
                             ((float) current / (float) _totalOut) * 100f,
                             current, _totalOut, _display,
@@ -1105,65 +1340,268 @@ public class UpdateService extends Service implements OnNetworkStateListener,
         });
     }
 
-    private boolean zipadjust(String filenameIn, String filenameOut,
+    // A native call, reporting to the progress buffer it is given
+    private interface NativeCall {
+        int run(ByteBuffer nativeProgress);
+    }
+
+    /*
+     * Run call with a progress buffer from cancelToken, so Stop reaches it.
+     * Native code counts the bytes it writes, those are reported in the
+     * background as progress of display. Returns what call returned
+     */
+    private int runNative(String tag, String display, long start, long currentOut,
+                          long totalOut, NativeCall call) {
+        ByteBuffer nativeProgress = cancelToken.newProgress();
+        Thread progress = getThreadedProgress(nativeProgress, display, start, currentOut,
+                totalOut);
+        progress.start();
+
+        int ok = 0;
+        try {
+            ok = call.run(nativeProgress);
+        } finally {
+            progress.interrupt();
+            try {
+                progress.join();
+            } catch (InterruptedException e) {
+                // We got interrupted in a very short wait, surprising, but not a
+                // problem. 'progress' will quit by itself.
+                Logger.ex(e);
+            }
+            cancelToken.release(nativeProgress);
+
+            Logger.d("%s --> %d", tag, ok);
+        }
+        return ok;
+    }
+
+    private boolean zipadjust(String filenameIn, String filenameOut, String matchSUM,
                               long start, long currentOut, long totalOut) {
         Logger.d("zipadjust [%s] --> [%s]", filenameIn, filenameOut);
 
-        // checking file sizes in the background as progress, because these
-        // native functions don't have callbacks (yet) to do this
+        (new File(filenameOut)).delete();
+
+        byte[] sum = new byte[32];
+        int ok = runNative("zipadjust", (new File(filenameIn)).getName(), start, currentOut,
+                totalOut, nativeProgress -> Native.zipadjust(filenameIn, filenameOut, 1,
+                        Runtime.getRuntime().availableProcessors(), nativeProgress, sum));
+
+        return (ok == 1) && checkOutputSUM(sum, matchSUM, filenameOut);
+    }
+
+    private boolean dedelta(String filenameSource, long unsignedSize, String filenameDelta,
+                            String filenameOut, String matchSUM,
+                            long start, long currentOut, long totalOut) {
+        Logger.d("dedelta [%s] --> [%s] --> [%s]", filenameSource,
+                filenameDelta, filenameOut);
 
         (new File(filenameOut)).delete();
 
-        Thread progress = getThreadedProgress(filenameOut,
-                (new File(filenameIn)).getName(), start, currentOut, totalOut);
-        progress.start();
+        byte[] sum = new byte[32];
+        int ok = runNative("dedelta", (new File(filenameDelta)).getName(), start, currentOut,
+                totalOut, nativeProgress -> Native.dedelta(filenameSource, unsignedSize,
+                        filenameDelta, filenameOut, nativeProgress, sum));
+        logSourceCacheStats();
 
-        int ok = Native.zipadjust(filenameIn, filenameOut, 1);
+        return (ok == 1) && checkOutputSUM(sum, matchSUM, filenameOut);
+    }
 
-        progress.interrupt();
-        try {
-            progress.join();
-        } catch (InterruptedException e) {
-            // We got interrupted in a very short wait, surprising, but not a
-            // problem. 'progress' will quit by itself.
-            Logger.ex(e);
-        }
+    private boolean dedeltaMerge(String filenameSource, long unsignedSize,
+                                 String[] filenamesDelta, String filenameOut, String matchSUM,
+                                 long start, long currentOut, long totalOut) {
+        Logger.d("dedelta [%s] --> %s --> [%s]", filenameSource,
+                Arrays.toString(filenamesDelta), filenameOut);
 
-        Logger.d("zipadjust --> %d", ok);
+        (new File(filenameOut)).delete();
 
-        return (ok == 1);
+        byte[] sum = new byte[32];
+        int ok = runNative("dedelta merge", (new File(filenameOut)).getName(), start,
+                currentOut, totalOut, nativeProgress -> Native.dedeltaMerge(filenameSource,
+                        unsignedSize, filenamesDelta, filenameOut, nativeProgress, sum));
+
+        return (ok == 1) && checkOutputSUM(sum, matchSUM, filenameOut);
     }
 
-    private boolean dedelta(String filenameSource, String filenameDelta,
-                            String filenameOut, long start, long currentOut, long totalOut) {
-        Logger.d("dedelta [%s] --> [%s] --> [%s]", filenameSource,
+    private boolean dedeltaSegmented(String filenameSource, long unsignedSize,
+                                     String filenameSegments, String filenameOut,
+                                     String matchSUM, long start, long currentOut,
+                                     long totalOut) {
+        Logger.d("dedelta segmented [%s] --> [%s] --> [%s]", filenameSource,
+                filenameSegments, filenameOut);
+
+        (new File(filenameOut)).delete();
+
+        byte[] sum = new byte[32];
+        int ok = runNative("dedelta segmented", (new File(filenameSegments)).getName(), start,
+                currentOut, totalOut, nativeProgress -> Native.dedeltaSegmented(filenameSource,
+                        unsignedSize, filenameSegments, filenameOut,
+                        Runtime.getRuntime().availableProcessors(), nativeProgress, sum));
+        logSourceCacheStats();
+
+        return (ok == 1) && checkOutputSUM(sum, matchSUM, filenameOut);
+    }
+
+    private int dedeltaAppend(String filenameSource, String filenameDelta,
+                              String filenameOut, String matchSUM, long start,
+                              long currentOut, long totalOut) {
+        Logger.d("dedelta append [%s] --> [%s] --> [%s]", filenameSource,
                 filenameDelta, filenameOut);
 
-        // checking file sizes in the background as progress, because these
-        // native functions don't have callbacks (yet) to do this
+        // The output is the source file itself, changed at the end. It is
+        // hashed reading the kept part and the written end back, and only
+        // becomes filenameOut if that matches; the source is restored if not
+        byte[] expect = FileHasher.fromHex(matchSUM);
+        if (expect == null)
+            return 0;
 
         (new File(filenameOut)).delete();
 
-        Thread progress = getThreadedProgress(filenameOut, (new File(
-                filenameDelta)).getName(), start, currentOut, totalOut);
-        progress.start();
+        byte[] sum = new byte[32];
+        int ok = runNative("dedelta append", (new File(filenameDelta)).getName(), start,
+                currentOut, totalOut, nativeProgress -> Native.dedeltaAppend(filenameSource,
+                        filenameDelta, filenameOut, nativeProgress, expect, sum));
+
+        if ((ok == 1) && !checkOutputSUM(sum, matchSUM, filenameOut))
+            return -1;
+        return ok;
+    }
+
+    private void logSourceCacheStats() {
+        long[] stats = Native.getSourceCacheStats();
+        Logger.d("dedelta source blocks: %d cached, %d read, %d mapped",
+                stats[0], stats[1], stats[2]);
+    }
 
-        int ok = Native.dedelta(filenameSource, filenameDelta, filenameOut);
+    private boolean dedeltaStream(String filenameSource, long unsignedSize,
+                                  DeltaInfo.FileUpdate fileUpdate,
+                                  String filenameOut, String matchSUM,
+                                  long start, long currentOut, long totalOut,
+                                  boolean force, boolean[] broken) {
+        // Same as dedelta, but feeds the delta into the decoder straight from
+        // the connection instead of from a downloaded .update file. If the
+        // transfer breaks off, broken[0] is set instead of reporting an
+        // error, the caller can then download the delta and apply that
 
-        progress.interrupt();
+        broken[0] = false;
+        if (!force && !networkState.getState()) {
+            Logger.d("aborting download due to network state");
+            return false;
+        }
+
+        String url = config.getUrlBaseUpdate() + fileUpdate.getName();
+        Logger.d("dedelta [%s] --> [%s] --> [%s]", filenameSource, url,
+                filenameOut);
+
+        MessageDigest digest;
         try {
-            progress.join();
-        } catch (InterruptedException e) {
-            // We got interrupted in a very short wait, surprising, but not a
-            // problem. 'progress' will quit by itself.
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // No SHA-256 algorithm support
             Logger.ex(e);
+            updateState(STATE_ERROR_UNKNOWN, null, null, null, null, null);
+            return false;
         }
 
-        Logger.d("dedelta --> %d", ok);
+        (new File(filenameOut)).delete();
+
+        boolean[] downloaded = new boolean[]{false};
+        int ok = runNative("dedelta", fileUpdate.getName(), start, currentOut, totalOut,
+                nativeProgress -> streamDelta(filenameSource, unsignedSize, fileUpdate, url,
+                        filenameOut, matchSUM, digest, nativeProgress, downloaded));
+        logSourceCacheStats();
 
+        if (ok != 1) {
+            if (cancelToken.isCancelled()) {
+                Logger.d("download stopped");
+            } else if (!downloaded[0]) {
+                broken[0] = true;
+                Logger.d("stream broke off");
+            } else {
+                updateState(STATE_ERROR_UNKNOWN, null, null, null, null,
+                        null);
+                Logger.d("dedelta error");
+            }
+        }
         return (ok == 1);
     }
 
+    // The decoding part of dedeltaStream. downloaded[0] tells whether all
+    // of the delta came in, so a failure was not the connection's
+    private int streamDelta(String filenameSource, long unsignedSize,
+                            DeltaInfo.FileUpdate fileUpdate, String url,
+                            String filenameOut, String matchSUM, MessageDigest digest,
+                            ByteBuffer nativeProgress, boolean[] downloaded) {
+        HttpsURLConnection urlConnection = null;
+        long handle = 0;
+        try {
+            urlConnection = setupHttpsRequest(url);
+            if (urlConnection == null)
+                return 0;
+
+            handle = Native.dedeltaOpen(filenameSource, unsignedSize, filenameOut,
+                    nativeProgress, true);
+            if (handle == 0) {
+                Logger.d("dedelta open failed");
+                downloaded[0] = true;
+                return 0;
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(262144);
+            ReadableByteChannel channel = Channels.newChannel(urlConnection.getInputStream());
+            long recv = 0;
+            int r;
+            while ((r = channel.read(buffer)) >= 0) {
+                if (cancelToken.isCancelled())
+                    return 0;
+                if (r == 0)
+                    continue;
+                buffer.flip();
+                digest.update(buffer);
+                if (Native.dedeltaFeed(handle, buffer, r) != 1) {
+                    Logger.d("dedelta feed failed");
+                    downloaded[0] = true;
+                    return 0;
+                }
+                buffer.clear();
+                recv += r;
+            }
+
+            // The decoder can't tell a truncated delta from a complete one,
+            // only flush the output if the delta is the one we expect
+            if ((recv != fileUpdate.getUpdate().getSize())
+                    || !checkDownloadSUM(digest, fileUpdate.getUpdate().getSHA256(), url)) {
+                Logger.d("delta mismatch: %d bytes", recv);
+                return 0;
+            }
+            downloaded[0] = true;
+
+            byte[] sum = new byte[32];
+            int ok = Native.dedeltaClose(handle, 1, sum);
+            handle = 0;
+            if ((ok == 1) && !checkOutputSUM(sum, matchSUM, filenameOut))
+                ok = 0;
+            return ok;
+        } catch (Exception e) {
+            // Download failed for any number of reasons, timeouts, connection
+            // drops, etc. Just log it in debugging mode.
+            Logger.ex(e);
+            return 0;
+        } finally {
+            if (handle != 0)
+                Native.dedeltaClose(handle, 0, null);
+            httpClient.release(urlConnection);
+        }
+    }
+
+    // A streamed delta broke off. Download it instead, which can be resumed
+    // if that is interrupted too, so the step can be applied from the file
+    private boolean downloadBrokenStream(DeltaInfo.FileUpdate fileUpdate, boolean force) {
+        Logger.d("downloading %s instead of streaming it", fileUpdate.getName());
+        return downloadDeltaFile(config.getUrlBaseUpdate(), fileUpdate, fileUpdate.getUpdate(),
+                getSUMProgress(STATE_ACTION_DOWNLOADING, fileUpdate.getName()), force);
+    }
+
     private boolean checkForUpdates(boolean userInitiated, int checkOnly) {
         /*
          * Unless the user is specifically asking to check for updates, we only
@@ -1231,39 +1669,33 @@ public class UpdateService extends Service implements OnNetworkStateListener,
         return false;
     }
 
-    private long getDeltaDownloadSize(List<DeltaInfo> deltas) {
+    private long getDeltaDownloadSize(List<DeltaInfo> deltas, HashScheduler hashScheduler) {
         updateState(STATE_ACTION_CHECKING, null, null, null, null, null);
 
-        long deltaDownloadSize = 0L;
-        for (DeltaInfo di : deltas) {
-            String fn = config.getPathBase() + di.getUpdate().getName();
-            if (di.getUpdate().match(
-                    new File(fn),
-                    true,
-                    getSUMProgress(STATE_ACTION_CHECKING_SUM, di.getUpdate()
-                            .getName())) == di.getUpdate().getUpdate()) {
-                di.getUpdate().setTag(fn);
-            } else {
-                deltaDownloadSize += di.getUpdate().getUpdate().getSize();
-            }
+        DeltaInfo lastDelta = deltas.get(deltas.size() - 1);
+
+        final List<DeltaInfo.FileUpdate> files = new ArrayList<>();
+        for (DeltaInfo di : deltas)
+            files.add(di.getUpdate());
+        if (config.getApplySignature())
+            files.add(lastDelta.getSignature());
+
+        // Verify whatever we already have of them all at once
+        List<Future<DeltaInfo.FileSizeSHA256>> matches = new ArrayList<>();
+        for (final DeltaInfo.FileUpdate file : files) {
+            final File f = new File(config.getPathBase() + file.getName());
+            matches.add(hashScheduler.submit(f,
+                    (cancelToken, progressListener) -> file.match(f, true, cancelToken,
+                            progressListener)));
         }
 
-        DeltaInfo lastDelta = deltas.get(deltas.size() - 1);
-        {
-            if (config.getApplySignature()) {
-                String fn = config.getPathBase()
-                        + lastDelta.getSignature().getName();
-                if (lastDelta.getSignature().match(
-                        new File(fn),
-                        true,
-                        getSUMProgress(STATE_ACTION_CHECKING_SUM, lastDelta
-                                .getSignature().getName())) == lastDelta
-                        .getSignature().getUpdate()) {
-                    lastDelta.getSignature().setTag(fn);
-                } else {
-                    deltaDownloadSize += lastDelta.getSignature().getUpdate()
-                            .getSize();
-                }
+        long deltaDownloadSize = 0L;
+        for (int i = 0; i < files.size(); i++) {
+            DeltaInfo.FileUpdate file = files.get(i);
+            if (HashScheduler.get(matches.get(i)) == file.getUpdate()) {
+                file.setTag(config.getPathBase() + file.getName());
+            } else {
+                deltaDownloadSize += file.getUpdate().getSize();
             }
         }
 
@@ -1288,12 +1720,15 @@ public class UpdateService extends Service implements OnNetworkStateListener,
             // The resulting number will be a tad more than worst case what we
             // actually need, but not dramatically so
 
-            for (DeltaInfo di : deltas) {
-                if (di.getUpdate().getTag() == null)
-                    requiredSpace += sizeOnDisk(di.getUpdate().getUpdate()
-                            .getSize());
+            // Streamed deltas never touch the disk
+            if (!config.getDownloadStream()) {
+                for (DeltaInfo di : deltas) {
+                    if (di.getUpdate().getTag() == null)
+                        requiredSpace += sizeOnDisk(di.getUpdate().getUpdate()
+                                .getSize());
+                }
             }
-            if (config.getApplySignature()) {
+            if (config.getApplySignature() && !config.getDownloadStream()) {
                 requiredSpace += sizeOnDisk(lastDelta.getSignature()
                         .getUpdate().getSize());
             }
@@ -1309,8 +1744,20 @@ public class UpdateService extends Service implements OnNetworkStateListener,
         return requiredSpace;
     }
 
-    private String findInitialFile(List<DeltaInfo> deltas,
-                                   String possibleMatch, boolean[] needsProcessing) {
+    // Start verifying the file findInitialFile looks for in our preferred
+    // location, so it can be done along with other files
+    private Future<DeltaInfo.FileSizeSHA256> submitInitialFileMatch(List<DeltaInfo> deltas,
+                                                                   HashScheduler hashScheduler) {
+        final DeltaInfo.FileFull in = deltas.get(0).getIn();
+        final File f = new File(config.getPathBase() + in.getName());
+        return hashScheduler.submit(f, (cancelToken, progressListener) -> in.match(f, true,
+                cancelToken, progressListener));
+    }
+
+    // expectedMatch, if not null, is from submitInitialFileMatch
+    private String findInitialFile(List<DeltaInfo> deltas, String possibleMatch,
+                                   boolean[] needsProcessing,
+                                   Future<DeltaInfo.FileSizeSHA256> expectedMatch) {
         // Find the currently flashed ZIP
         Logger.d("findInitialFile possibleMatch = " + possibleMatch);
 
@@ -1327,18 +1774,23 @@ public class UpdateService extends Service implements OnNetworkStateListener,
         DeltaInfo.FileSizeSHA256 match = null;
         if (expectedLocation.equals(possibleMatch)) {
             match = firstDelta.getIn().match(new File(expectedLocation), false,
-                    null);
+                    cancelToken, null);
             if (match != null) {
                 initialFile = possibleMatch;
             }
         }
 
         if (match == null) {
-            match = firstDelta.getIn().match(
-                    new File(expectedLocation),
-                    true,
-                    getSUMProgress(STATE_ACTION_SEARCHING_SUM, firstDelta
-                            .getIn().getName()));
+            if (expectedMatch != null) {
+                match = HashScheduler.get(expectedMatch);
+            } else {
+                match = firstDelta.getIn().match(
+                        new File(expectedLocation),
+                        true,
+                        cancelToken,
+                        getSUMProgress(STATE_ACTION_SEARCHING_SUM, firstDelta
+                                .getIn().getName()));
+            }
             if (match != null) {
                 initialFile = expectedLocation;
             }
@@ -1356,6 +1808,10 @@ public class UpdateService extends Service implements OnNetworkStateListener,
                                   long totalDownloadSize, boolean force) {
         // Download all the files we do not have yet
 
+        if (config.getDownloadConcurrency() > 1)
+            return downloadFilesConcurrent(deltas, totalDownloadSize, force,
+                    config.getDownloadConcurrency());
+
         DeltaInfo lastDelta = deltas.get(deltas.size() - 1);
 
         final String[] filename = new String[]{null};
@@ -1408,6 +1864,154 @@ public class UpdateService extends Service implements OnNetworkStateListener,
         return true;
     }
 
+    private boolean downloadFilesConcurrent(List<DeltaInfo> deltas,
+                                            long totalDownloadSize, boolean force,
+                                            int concurrency) {
+        // Same as downloadFiles, but fetches up to concurrency files at the
+        // same time instead of paying for a new connection ramp-up each step
+
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        CompletionService<Boolean> completion = new ExecutorCompletionService<>(executor);
+        AtomicBoolean failed = new AtomicBoolean(false);
+        try {
+            Map<DeltaInfo.FileBase, Future<Boolean>> downloads = startDownloadFiles(
+                    deltas, totalDownloadSize, force, completion, failed, new AtomicBoolean(false));
+            // In the order they finish, so a failure is seen right away
+            boolean ok = true;
+            for (int i = 0; ok && (i < downloads.size()); i++) {
+                try {
+                    ok = waitDownload(completion.take());
+                } catch (InterruptedException e) {
+                    Logger.ex(e);
+                    ok = false;
+                }
+            }
+            if (!ok) {
+                // The downloads still running are of no use, stop them
+                // instead of waiting for them to finish
+                failed.set(true);
+                cancelToken.cancel();
+                for (Future<Boolean> download : downloads.values())
+                    waitDownload(download);
+                return false;
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        updateState(STATE_ACTION_DOWNLOADING, 100f, totalDownloadSize,
+                totalDownloadSize, null, null);
+        return true;
+    }
+
+    /*
+     * Queue every delta file we don't have yet on executor, in chain order,
+     * signature last. Progress of all of them is combined into a single
+     * downloading state, unless muted is set. Once one of them fails, failed
+     * is set and downloads that have not started yet are skipped.
+     */
+    private Map<DeltaInfo.FileBase, Future<Boolean>> startDownloadFiles(
+            List<DeltaInfo> deltas, final long totalDownloadSize, final boolean force,
+            CompletionService<Boolean> executor, final AtomicBoolean failed,
+            final AtomicBoolean muted) {
+        DeltaInfo lastDelta = deltas.get(deltas.size() - 1);
+
+        final List<DeltaInfo.FileUpdate> files = new ArrayList<>();
+        for (DeltaInfo di : deltas) {
+            if (di.getUpdate().getTag() == null)
+                files.add(di.getUpdate());
+        }
+        if (config.getApplySignature() && (lastDelta.getSignature().getTag() == null))
+            files.add(lastDelta.getSignature());
+
+        updateState(STATE_ACTION_DOWNLOADING, 0f, 0L, totalDownloadSize, null,
+                null);
+
+        // received per file, last update time, start time
+        final long[] received = new long[files.size()];
+        final long[] last = new long[]{0, SystemClock.elapsedRealtime()};
+
+        Map<DeltaInfo.FileBase, Future<Boolean>> downloads = new HashMap<>();
+        for (int i = 0; i < files.size(); i++) {
+            final int index = i;
+            final DeltaInfo.FileUpdate file = files.get(i);
+            final DeltaInfo.ProgressListener progressListener = new DeltaInfo.ProgressListener() {
+                @Override
+                public void onProgress(float progress, long current, long total) {
+                    synchronized (received) {
+                        received[index] = current;
+                        long now = SystemClock.elapsedRealtime();
+                        // keep the others from overwriting an error state
+                        if (failed.get() || muted.get() || (now < last[0] + 16L))
+                            return;
+                        long sum = 0;
+                        for (long r : received)
+                            sum += r;
+                        updateState(STATE_ACTION_DOWNLOADING,
+                                ((float) sum / (float) totalDownloadSize) * 100f, sum,
+                                totalDownloadSize, file.getName(), now - last[1]);
+                        last[0] = now;
+                    }
+                }
+
+                public void setStatus(String s) {
+                    // do nothing
+                }
+            };
+            downloads.put(file, executor.submit(() -> {
+                if (cancelToken.isCancelled() || failed.get())
+                    return false;
+                boolean ok = downloadDeltaFile(config.getUrlBaseUpdate(), file,
+                        file.getUpdate(), progressListener, force);
+                if (!ok)
+                    failed.set(true);
+                return ok;
+            }));
+        }
+        return downloads;
+    }
+
+    private boolean waitDownload(Future<Boolean> download) {
+        try {
+            return download.get();
+        } catch (InterruptedException | ExecutionException e) {
+            Logger.ex(e);
+            return false;
+        }
+    }
+
+    /*
+     * Pipelined download and apply: each dedelta step starts as soon as its
+     * own delta is in, while the next ones are still downloading.
+     */
+    private boolean downloadAndApplyPatches(List<DeltaInfo> deltas, long totalDownloadSize,
+                                            boolean force, String initialFile,
+                                            boolean initialFileNeedsProcessing) {
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, config.getDownloadConcurrency()));
+        AtomicBoolean failed = new AtomicBoolean(false);
+        AtomicBoolean muted = new AtomicBoolean(false);
+        Map<DeltaInfo.FileBase, Future<Boolean>> downloads = startDownloadFiles(
+                deltas, totalDownloadSize, force, new ExecutorCompletionService<>(executor),
+                failed, muted);
+        executor.shutdown();
+        boolean ok = false;
+        try {
+            ok = applyPatches(deltas, initialFile, initialFileNeedsProcessing,
+                    downloads, muted, false, force);
+            return ok;
+        } finally {
+            // Don't leave anything writing to the files we are about to
+            // clean up or retry. After a failure the downloads still running
+            // are of no use, stop them instead of waiting for them to finish
+            failed.set(true);
+            if (!ok)
+                cancelToken.cancel();
+            for (Future<Boolean> download : downloads.values())
+                waitDownload(download);
+        }
+    }
+
     private void downloadFullBuild(String url, String sha256Sum,
                                    String imageName) {
         final String[] filename = new String[]{null};
@@ -1417,11 +2021,12 @@ public class UpdateService extends Service implements OnNetworkStateListener,
         Logger.d("download: %s --> %s", url, fn);
 
         if (downloadUrlFileUnknownSize(url, f, sha256Sum)) {
+            hashCache.put(f, HashCache.identify(f), sha256Sum);
             Logger.d("success");
             prefs.edit().putString(PREF_READY_FILENAME_NAME, fn).apply();
         } else {
             f.delete();
-            if (stopDownload) {
+            if (cancelToken.isCancelled()) {
                 Logger.d("download stopped");
             } else {
                 Logger.d("download error");
@@ -1445,7 +2050,7 @@ public class UpdateService extends Service implements OnNetworkStateListener,
         String latestFullSUM = downloadUrlMemoryAsString(url);
         if (latestFullSUM != null) {
             try {
-                String fileSUM = getFileSHA256(new File(fn),
+                String fileSUM = FileHasher.sha256(new File(fn), cancelToken,
                         getSUMProgress(STATE_ACTION_CHECKING_SUM,
                                 new File(fn).getName()));
                 if (latestFullSUM.equals(fileSUM)) {
@@ -1458,8 +2063,38 @@ public class UpdateService extends Service implements OnNetworkStateListener,
         return false;
     }
 
+    // fn was the ready full build on the last check, which was against the
+    // same build list, and the file is unchanged since it was verified
+    private boolean isFullBuildStillReady(String fn, String readyFilename, boolean notModified) {
+        return notModified && fn.equals(readyFilename) && (hashCache.get(new File(fn)) != null);
+    }
+
+    // A step failed, which is an error unless we were told to stop
+    private void applyFailed(String message) {
+        if (cancelToken.isCancelled()) {
+            Logger.d("%s: stopped", message);
+            return;
+        }
+        updateState(STATE_ERROR_UNKNOWN, null, null, null, null, null);
+        Logger.d(message);
+    }
+
     private boolean applyPatches(List<DeltaInfo> deltas, String initialFile,
                                  boolean initialFileNeedsProcessing) {
+        return applyPatches(deltas, initialFile, initialFileNeedsProcessing, null, null,
+                false, false);
+    }
+
+    /*
+     * downloads: if set, wait for each delta's download before applying it
+     * stream: deltas that are not on disk are fed to the decoder straight
+     *         from the server
+     * force: stream regardless of the network state
+     */
+    private boolean applyPatches(List<DeltaInfo> deltas, String initialFile,
+                                 boolean initialFileNeedsProcessing,
+                                 Map<DeltaInfo.FileBase, Future<Boolean>> downloads,
+                                 AtomicBoolean downloadMuted, boolean stream, boolean force) {
         // Create storeSigned outfile from infile + deltas
 
         DeltaInfo firstDelta = deltas.get(0);
@@ -1473,56 +2108,174 @@ public class UpdateService extends Service implements OnNetworkStateListener,
             long current = 0L;
             long total = 0L;
 
+            // A store_signed ZIP is the store ZIP with the signature added as
+            // its comment. Rather than rewriting it through zipadjust, have
+            // the first step read it as the store ZIP it is signed from
+            long unsignedSize = -1;
+            File initial = new File(initialFile);
+            if (initialFileNeedsProcessing && !firstDelta.getIn().isOfficialFile(initial)
+                    && firstDelta.getIn().isSignedFile(initial)) {
+                Logger.d("reading [%s] unsigned", initialFile);
+                unsignedSize = firstDelta.getIn().getStore().getSize();
+                initialFileNeedsProcessing = false;
+            }
+
             if (initialFileNeedsProcessing)
                 total += firstDelta.getIn().getStore().getSize();
+            // Merged steps skip ahead over the outputs they didn't write
             for (DeltaInfo di : deltas)
                 total += di.getUpdate().getApplied().getSize();
             if (config.getApplySignature())
                 total += lastDelta.getSignature().getApplied().getSize();
 
+            if (downloadMuted != null)
+                downloadMuted.set(true);
+
             if (initialFileNeedsProcessing) {
-                if (!zipadjust(initialFile, tempFiles[tempFile], start,
+                if (!zipadjust(initialFile, tempFiles[tempFile],
+                        firstDelta.getIn().getStore().getSHA256(), start,
                         current, total)) {
-                    updateState(STATE_ERROR_UNKNOWN, null, null, null, null,
-                            null);
-                    Logger.d("zipadjust error");
+                    applyFailed("zipadjust error");
                     return false;
                 }
                 tempFile = (tempFile + 1) % 2;
                 current += firstDelta.getIn().getStore().getSize();
             }
 
-            for (DeltaInfo di : deltas) {
+            boolean signed = false;
+            boolean mergeFailed = false;
+            for (int i = 0; i < deltas.size(); i++) {
+                DeltaInfo di = deltas.get(i);
                 String inFile = tempFiles[(tempFile + 1) % 2];
-                if (!initialFileNeedsProcessing && (di == firstDelta))
+                long inSize = -1;
+                if (!initialFileNeedsProcessing && (di == firstDelta)) {
                     inFile = initialFile;
+                    inSize = unsignedSize;
+                }
                 String outFile = tempFiles[tempFile];
                 if (!config.getApplySignature() && (di == lastDelta))
                     outFile = config.getPathBase()
                             + lastDelta.getOut().getName();
 
-                if (!dedelta(inFile, config.getPathBase()
-                                + di.getUpdate().getName(), outFile, start, current,
+                if (!waitPatchDownload(downloads, downloadMuted, di.getUpdate()))
+                    return false;
+
+                // Merge this delta with the ones after it that are already
+                // downloaded, writing only the last one's output
+                List<DeltaInfo.FileBase> merge = (stream || mergeFailed) ? null
+                        : getMergeFiles(deltas, i, downloads);
+                if (merge != null) {
+                    int merged = merge.size();
+                    boolean withSignature = config.getApplySignature()
+                            && (merge.get(merged - 1) == lastDelta.getSignature());
+                    if (withSignature)
+                        merged--;
+                    DeltaInfo mergeLast = deltas.get(i + merged - 1);
+                    String mergeOut = ((mergeLast == lastDelta)
+                            && (withSignature || !config.getApplySignature()))
+                            ? config.getPathBase() + lastDelta.getOut().getName()
+                            : outFile;
+                    String matchSUM = withSignature
+                            ? lastDelta.getSignature().getApplied().getSHA256()
+                            : mergeLast.getUpdate().getApplied().getSHA256();
+                    String[] mergeFiles = new String[merge.size()];
+                    for (int j = 0; j < mergeFiles.length; j++)
+                        mergeFiles[j] = config.getPathBase() + merge.get(j).getName();
+
+                    if (dedeltaMerge(inFile, inSize, mergeFiles, mergeOut, matchSUM,
+                            start, current, total)) {
+                        for (int j = 0; j < merged; j++)
+                            current += deltas.get(i + j).getUpdate().getApplied().getSize();
+                        if (withSignature) {
+                            current += lastDelta.getSignature().getApplied().getSize();
+                            signed = true;
+                        }
+                        tempFile = (tempFile + 1) % 2;
+                        i += merged - 1;
+                        continue;
+                    }
+
+                    if (cancelToken.isCancelled())
+                        return false;
+
+                    // Out of memory, or the result did not verify. These
+                    // deltas are applied one at a time instead, which also
+                    // pinpoints a bad step. Don't try merging the rest either
+                    Logger.d("merge failed, applying deltas one by one");
+                    mergeFailed = true;
+                }
+
+                boolean streamed = false;
+                if (stream && (di.getUpdate().getTag() == null)) {
+                    boolean[] broken = new boolean[]{false};
+                    streamed = dedeltaStream(inFile, inSize, di.getUpdate(), outFile,
+                            di.getUpdate().getApplied().getSHA256(), start,
+                            current, total, force, broken);
+                    if (!streamed && (!broken[0] || !downloadBrokenStream(di.getUpdate(), force)))
+                        return false;
+                }
+                if (streamed) {
+                    // applied as it came in
+                } else if (di.getUpdate().isSegmented()) {
+                    if (!dedeltaSegmented(inFile, inSize, config.getPathBase()
+                                    + di.getUpdate().getName(), outFile,
+                            di.getUpdate().getApplied().getSHA256(), start, current,
+                            total)) {
+                        applyFailed("dedelta error");
+                        return false;
+                    }
+                } else if (!dedelta(inFile, inSize, config.getPathBase()
+                                + di.getUpdate().getName(), outFile,
+                        di.getUpdate().getApplied().getSHA256(), start, current,
                         total)) {
-                    updateState(STATE_ERROR_UNKNOWN, null, null, null, null,
-                            null);
-                    Logger.d("dedelta error");
+                    applyFailed("dedelta error");
                     return false;
                 }
                 tempFile = (tempFile + 1) % 2;
                 current += di.getUpdate().getApplied().getSize();
             }
 
-            if (config.getApplySignature()) {
-                if (!dedelta(tempFiles[(tempFile + 1) % 2],
-                        config.getPathBase()
-                                + lastDelta.getSignature().getName(),
-                        config.getPathBase() + lastDelta.getOut().getName(),
-                        start, current, total)) {
-                    updateState(STATE_ERROR_UNKNOWN, null, null, null, null,
-                            null);
-                    Logger.d("dedelta error");
+            if (config.getApplySignature() && !signed) {
+                if (!waitPatchDownload(downloads, downloadMuted, lastDelta.getSignature()))
                     return false;
+
+                // The signature delta usually only rewrites the end of the
+                // file, which is done in place on the last intermediate file
+                // rather than copying all of it
+                int appended = 0;
+                if (!stream || (lastDelta.getSignature().getTag() != null)) {
+                    appended = dedeltaAppend(tempFiles[(tempFile + 1) % 2],
+                            config.getPathBase() + lastDelta.getSignature().getName(),
+                            config.getPathBase() + lastDelta.getOut().getName(),
+                            lastDelta.getSignature().getApplied().getSHA256(),
+                            start, current, total);
+                }
+                if (appended < 0) {
+                    applyFailed("dedelta append error");
+                    return false;
+                }
+                boolean streamed = false;
+                if ((appended == 0) && stream && (lastDelta.getSignature().getTag() == null)) {
+                    boolean[] broken = new boolean[]{false};
+                    streamed = dedeltaStream(tempFiles[(tempFile + 1) % 2], -1,
+                            lastDelta.getSignature(),
+                            config.getPathBase() + lastDelta.getOut().getName(),
+                            lastDelta.getSignature().getApplied().getSHA256(),
+                            start, current, total, force, broken);
+                    if (!streamed && (!broken[0]
+                            || !downloadBrokenStream(lastDelta.getSignature(), force)))
+                        return false;
+                }
+                if ((appended == 0) && !streamed) {
+                    if (!dedelta(tempFiles[(tempFile + 1) % 2], -1,
+                            config.getPathBase()
+                                    + lastDelta.getSignature().getName(),
+                            config.getPathBase() + lastDelta.getOut().getName(),
+                            lastDelta.getSignature().getApplied().getSHA256(),
+                            start, current, total)) {
+                        applyFailed("dedelta error");
+                        return false;
+                    }
                 }
             }
         } finally {
@@ -1533,6 +2286,101 @@ public class UpdateService extends Service implements OnNetworkStateListener,
         return true;
     }
 
+    /*
+     * The deltas to merge into one and apply in a single pass, starting at
+     * deltas[from]: it and the ones after it that are downloaded already,
+     * plus the signature delta if that run reaches the end of the chain.
+     * Null to apply deltas[from] on its own. Without a download pipeline
+     * that is the whole chain, with one it is whatever has arrived by the
+     * time we get there.
+     */
+    private List<DeltaInfo.FileBase> getMergeFiles(List<DeltaInfo> deltas, int from,
+            Map<DeltaInfo.FileBase, Future<Boolean>> downloads) {
+        if (!config.getApplyMerge())
+            return null;
+
+        List<DeltaInfo.FileBase> files = new ArrayList<>();
+        long size = 0;
+        for (int i = from; i < deltas.size(); i++) {
+            DeltaInfo.FileUpdate update = deltas.get(i).getUpdate();
+            // segmented deltas are applied in parallel instead
+            if (update.isSegmented() || !isPatchDownloaded(downloads, update))
+                break;
+            files.add(update);
+            size += update.getUpdate().getSize();
+            if (i == deltas.size() - 1) {
+                DeltaInfo.FileUpdate signature = deltas.get(i).getSignature();
+                if (config.getApplySignature() && isPatchDownloaded(downloads, signature)) {
+                    files.add(signature);
+                    size += signature.getUpdate().getSize();
+                }
+            }
+        }
+        if ((files.size() < 2) || !canMerge(files.size(), size))
+            return null;
+        Logger.d("merging %d deltas, %d bytes", files.size(), size);
+        return files;
+    }
+
+    /*
+     * Merging needs every delta in memory at once, the decoded form is
+     * typically larger than the delta file, so only merge if twice their
+     * size fits comfortably.
+     */
+    private boolean canMerge(int count, long size) {
+        ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+        ((ActivityManager) getSystemService(ACTIVITY_SERVICE)).getMemoryInfo(memoryInfo);
+        if (size * 2 > memoryInfo.availMem / 4) {
+            Logger.d("not merging %d deltas, %d bytes", count, size);
+            return false;
+        }
+        return true;
+    }
+
+    /*
+     * Whether the whole chain can be merged once downloaded. Segmented
+     * deltas can't be, so they are only used where this is false
+     */
+    private boolean willMerge(List<DeltaInfo> deltas) {
+        if (!config.getApplyMerge() || config.getDownloadStream())
+            return false;
+        int count = deltas.size();
+        long size = 0;
+        for (DeltaInfo di : deltas)
+            size += di.getUpdate().getUpdate().getSize();
+        if (config.getApplySignature()) {
+            count++;
+            size += deltas.get(deltas.size() - 1).getSignature().getUpdate().getSize();
+        }
+        return (count >= 2) && canMerge(count, size);
+    }
+
+    // Downloaded already, without waiting for it
+    private boolean isPatchDownloaded(Map<DeltaInfo.FileBase, Future<Boolean>> downloads,
+                                      DeltaInfo.FileBase fileBase) {
+        if (downloads == null)
+            return true;
+        Future<Boolean> download = downloads.get(fileBase);
+        return (download == null) || (download.isDone() && waitDownload(download));
+    }
+
+    private boolean waitPatchDownload(Map<DeltaInfo.FileBase, Future<Boolean>> downloads,
+                                      AtomicBoolean downloadMuted, DeltaInfo.FileBase fileBase) {
+        if (downloads == null)
+            return true;
+        Future<Boolean> download = downloads.get(fileBase);
+        if (download == null)
+            return true;
+
+        // Show download progress while we have nothing to apply
+        downloadMuted.set(false);
+        boolean ok = waitDownload(download);
+        downloadMuted.set(true);
+        if (!ok)
+            Logger.d("download failed for %s", fileBase.getName());
+        return ok;
+    }
+
     private void writeString(OutputStream os, String s)
             throws IOException {
         os.write((s + "\n").getBytes(StandardCharsets.UTF_8));
@@ -1837,53 +2685,6 @@ public class UpdateService extends Service implements OnNetworkStateListener,
         return null;
     }
 
-    private float getProgress(long current, long total) {
-        if (total == 0)
-            return 0f;
-        return ((float) current / (float) total) * 100f;
-    }
-
-    // need to locally here for the deltas == 0 case
-    private String getFileSHA256(File file, ProgressListener progressListener) {
-        String ret = null;
-
-        long current = 0;
-        long total = file.length();
-        if (progressListener != null)
-            progressListener.onProgress(getProgress(current, total), current, total);
-
-        try {
-            try (FileInputStream is = new FileInputStream(file)) {
-                MessageDigest digest = MessageDigest.getInstance("SHA-256");
-                byte[] buffer = new byte[256 * 1024];
-                int r;
-
-                while ((r = is.read(buffer)) > 0) {
-                    digest.update(buffer, 0, r);
-                    current += r;
-                    if (progressListener != null)
-                        progressListener.onProgress(getProgress(current, total), current, total);
-                }
-
-                //while (SUM.length() < 32)
-                //     SUM = "0" + SUM;
-                ret = new BigInteger(1, digest.digest()).
-                        toString(16).toLowerCase(Locale.ENGLISH);
-                Logger.d("sha256sum from file is: " + ret);
-            }
-        } catch (IOException | NoSuchAlgorithmException e) {
-            // No SHA256 support (returns null)
-            // The SHA256 of a non-existing file is null
-            // Read or close error (returns null)
-            Logger.ex(e);
-        }
-
-        if (progressListener != null)
-            progressListener.onProgress(getProgress(total, total), total, total);
-
-        return ret;
-    }
-
     private boolean isSupportedVersion() {
         return config.isOfficialVersion();
     }
@@ -1976,7 +2777,7 @@ public class UpdateService extends Service implements OnNetworkStateListener,
         handler.post(() -> {
             boolean downloadFullBuild = false;
 
-            stopDownload = false;
+            cancelToken = new CancelToken();
             updateRunning = true;
 
             try {
@@ -1986,9 +2787,21 @@ public class UpdateService extends Service implements OnNetworkStateListener,
                 (new File(config.getPathBase())).mkdir();
                 (new File(config.getPathFlashAfterUpdate())).mkdir();
 
+                boolean upToDate = !userInitiated && config.getVersion().equals(
+                        prefs.getString(PREF_UP_TO_DATE_VERSION, null));
+                // cleared below, but may still hold if the builds didn't change
+                String readyFilename = prefs.getString(PREF_READY_FILENAME_NAME, null);
+                boolean[] notModified = new boolean[]{false};
+                List<String> latestFullBuildWithUrl = getNewestFullBuild(notModified, upToDate);
+                if (notModified[0] && upToDate) {
+                    // Nothing changed on the server since we last found
+                    // ourselves up to date, no need to look any further
+                    Logger.d("builds unchanged, still up to date");
+                    return;
+                }
+
                 clearState();
 
-                List<String> latestFullBuildWithUrl = getNewestFullBuild();
                 String latestFullBuild;
                 // if we don't even find a build on dl no sense to continue
                 if (latestFullBuildWithUrl == null || latestFullBuildWithUrl.size() == 0) {
@@ -2014,55 +2827,23 @@ public class UpdateService extends Service implements OnNetworkStateListener,
                 if (!Config.isABDevice()) {
                     // Create a list of deltas to apply to get from our current
                     // version to the latest
-                    String fetch = String.format(Locale.ENGLISH, "%s%s.delta",
-                            config.getUrlBaseDelta(),
-                            config.getFilenameBase());
-
-                    while (true) {
-                        DeltaInfo delta = null;
-                        byte[] data = downloadUrlMemory(fetch);
-                        if (data != null && data.length != 0) {
-                            try {
-                                delta = new DeltaInfo(data, false);
-                            } catch (JSONException | NullPointerException e) {
-                                // There's an error in the JSON. Could be bad JSON,
-                                // could be a 404 text, etc
-                                Logger.ex(e);
-                                delta = null;
-                            } // Download failed
-
-                        }
-
-                        if (delta == null) {
-                            // See if we have a revoked version instead, we
-                            // still need it for chaining future deltas, but
-                            // will not allow flashing this one
-                            data = downloadUrlMemory(fetch.replace(".delta",
-                                    ".delta_revoked"));
-                            if (data != null && data.length != 0) {
-                                try {
-                                    delta = new DeltaInfo(data, true);
-                                } catch (JSONException | NullPointerException e) {
-                                    // There's an error in the JSON. Could be bad
-                                    // JSON, could be a 404 text, etc
-                                    Logger.ex(e);
-                                    delta = null;
-                                } // Download failed
-
-                            }
-
-                            // We didn't get a delta or a delta_revoked - end of
-                            // the delta availability chain
-                            if (delta == null)
-                                break;
-                        }
-
-                        Logger.d("delta --> [%s]", delta.getOut().getName());
-                        fetch = String.format(Locale.ENGLISH, "%s%s.delta",
-                                config.getUrlBaseDelta(), delta
-                                        .getOut().getName().replace(".zip", ""));
-                        deltas.add(delta);
-                    }
+                    DeltaChainResolver resolver = new DeltaChainResolver(
+                            new DeltaChainResolver.Fetcher() {
+                                @Override
+                                public byte[] fetch(String url, int[] status) {
+                                    return downloadUrlMemory(url, status);
+                                }
+
+                                @Override
+                                public int probe(String url) {
+                                    return getUrlStatus(url);
+                                }
+                            }, config.getUrlBaseDelta(), deltaInfoCache,
+                            config.getDeltaChainConcurrency());
+                    String manifest = downloadUrlMemoryAsString(
+                            config.getUrlBaseDelta() + DELTA_CHAIN_MANIFEST);
+                    deltas.addAll(resolver.resolve(config.getFilenameBase(), manifest,
+                            latestFullBuild));
                 }
 
                 if (deltas.size() > 0) {
@@ -2073,12 +2854,14 @@ public class UpdateService extends Service implements OnNetworkStateListener,
                     for (int i = deltas.size() - 1; i >= 0; i--) {
                         DeltaInfo di = deltas.get(i);
                         String fn = config.getPathBase() + di.getOut().getName();
-                        if (di.getOut()
-                                .match(new File(fn),
-                                        true,
-                                        getSUMProgress(STATE_ACTION_CHECKING_SUM, di.getOut()
-                                                .getName())) != null) {
-                            if (latestFullBuild.equals(di.getOut().getName())) {
+                        // Only the latest build is of use, don't read others
+                        if (latestFullBuild.equals(di.getOut().getName())) {
+                            if (di.getOut()
+                                    .match(new File(fn),
+                                            true,
+                                            cancelToken,
+                                            getSUMProgress(STATE_ACTION_CHECKING_SUM, di.getOut()
+                                                    .getName())) != null) {
                                 boolean signedFile = di.getOut().isSignedFile(new File(fn));
                                 Logger.d("match found (%s): %s", signedFile ? "delta" : "full", di.getOut().getName());
                                 flashFilename = fn;
@@ -2099,6 +2882,15 @@ public class UpdateService extends Service implements OnNetworkStateListener,
                     deltas.remove(deltas.size() - 1);
                 }
 
+                if (config.getApplySegmented() && !config.getDownloadStream()
+                        && (deltas.size() > 0) && !willMerge(deltas)) {
+                    // Fetch and apply the segmented deltas where available
+                    for (DeltaInfo di : deltas) {
+                        if (di.useSegmented())
+                            Logger.d("using segmented delta %s", di.getUpdate().getName());
+                    }
+                }
+
                 if (deltas.size() == 0) {
                     // we found a matching zip created from deltas before
                     if (flashFilename != null) {
@@ -2133,7 +2925,8 @@ public class UpdateService extends Service implements OnNetworkStateListener,
                         String fn = config.getPathBase() + latestFullBuild;
                         if (new File(fn).exists()) {
                             boolean directSUM = latestFullBuildWithUrl.size() == 3;
-                            if (checkFullBuildSHA256Sum(
+                            if (isFullBuildStillReady(fn, readyFilename, notModified[0])
+                                    || checkFullBuildSHA256Sum(
                                     (directSUM ? latestFullBuildWithUrl.get(2) : latestFullFetchSUM),
                                     fn, directSUM)) {
                                 Logger.d("match found (full): " + fn);
@@ -2158,22 +2951,31 @@ public class UpdateService extends Service implements OnNetworkStateListener,
                     DeltaInfo lastDelta = deltas.get(deltas.size() - 1);
                     flashFilename = config.getPathBase() + lastDelta.getOut().getName();
 
-                    long deltaDownloadSize = getDeltaDownloadSize(deltas);
-                    long fullDownloadSize = getFullDownloadSize(deltas);
-
-                    Logger.d("download size --> deltas[%d] vs full[%d]", deltaDownloadSize,
-                            fullDownloadSize);
-
-                    // Find the currently flashed ZIP, or a newer one
+                    // The deltas we have and the initial file are verified
+                    // at the same time
+                    long deltaDownloadSize;
                     String initialFile;
                     boolean initialFileNeedsProcessing;
-                    {
+                    HashScheduler hashScheduler = newHashScheduler();
+                    try {
+                        Future<DeltaInfo.FileSizeSHA256> initialMatch =
+                                submitInitialFileMatch(deltas, hashScheduler);
+                        deltaDownloadSize = getDeltaDownloadSize(deltas, hashScheduler);
+
+                        // Find the currently flashed ZIP, or a newer one
                         boolean[] needsProcessing = new boolean[]{
                                 false
                         };
-                        initialFile = findInitialFile(deltas, flashFilename, needsProcessing);
+                        initialFile = findInitialFile(deltas, flashFilename, needsProcessing,
+                                initialMatch);
                         initialFileNeedsProcessing = needsProcessing[0];
+                    } finally {
+                        hashScheduler.shutdown();
                     }
+                    long fullDownloadSize = getFullDownloadSize(deltas);
+
+                    Logger.d("download size --> deltas[%d] vs full[%d]", deltaDownloadSize,
+                            fullDownloadSize);
                     Logger.d("initial: %s", initialFile != null ? initialFile : "not found");
 
                     // If we don't have a file to start out with, or the
@@ -2219,7 +3021,8 @@ public class UpdateService extends Service implements OnNetworkStateListener,
                         String fn = config.getPathBase() + latestFullBuild;
                         if (new File(fn).exists()) {
                             boolean directSUM = latestFullBuildWithUrl.size() == 3;
-                            if (checkFullBuildSHA256Sum(
+                            if (isFullBuildStillReady(fn, readyFilename, notModified[0])
+                                    || checkFullBuildSHA256Sum(
                                     (directSUM ? latestFullBuildWithUrl.get(2) : latestFullFetchSUM),
                                     fn, directSUM)) {
                                 Logger.d("match found (full): " + fn);
@@ -2260,24 +3063,34 @@ public class UpdateService extends Service implements OnNetworkStateListener,
                     if (!downloadFullBuild && checkOnly > PREF_AUTO_DOWNLOAD_CHECK) {
                         // Download all the files we do not have yet
                         // getFull = false since full download is handled below
-                        if (!downloadFiles(deltas, downloadSize, userInitiated))
-                            return;
-
-                        // Reconstruct flashable ZIP
-                        if (!applyPatches(deltas, initialFile, initialFileNeedsProcessing))
-                            return;
+                        if (config.getDownloadStream()) {
+                            // Reconstruct flashable ZIP, fetching the deltas
+                            // while applying them
+                            if (!userInitiated && !networkState.getState()) {
+                                Logger.d("aborting download due to network state");
+                                return;
+                            }
+                            if (!applyPatches(deltas, initialFile, initialFileNeedsProcessing,
+                                    null, null, true, userInitiated))
+                                return;
+                        } else if (config.getDownloadPipeline()) {
+                            // Download and reconstruct flashable ZIP at the
+                            // same time
+                            if (!downloadAndApplyPatches(deltas, downloadSize, userInitiated,
+                                    initialFile, initialFileNeedsProcessing))
+                                return;
+                        } else {
+                            if (!downloadFiles(deltas, downloadSize, userInitiated))
+                                return;
 
-                        // Verify using SHA256
-                        if (lastDelta.getOut().match(
-                                new File(config.getPathBase() + lastDelta.getOut().getName()),
-                                true,
-                                getSUMProgress(STATE_ACTION_APPLYING_SUM, lastDelta.getOut()
-                                        .getName())) == null) {
-                            updateState(STATE_ERROR_UNKNOWN, null, null, null, null, null);
-                            Logger.d("final verification error");
-                            return;
+                            // Reconstruct flashable ZIP
+                            if (!applyPatches(deltas, initialFile, initialFileNeedsProcessing))
+                                return;
                         }
-                        Logger.d("final verification complete");
+
+                        // No need to read the result back to verify it,
+                        // every step checked the SHA256 of what it wrote
+                        // against the expected one as it went
 
                         // Cleanup
                         for (DeltaInfo di : deltas) {
@@ -2318,6 +3131,12 @@ public class UpdateService extends Service implements OnNetworkStateListener,
                 if (wifiLock.isHeld()) wifiLock.release();
                 if (wakeLock.isHeld()) wakeLock.release();
 
+                if (!isErrorState(state) && !updateAvailable()) {
+                    prefs.edit().putString(PREF_UP_TO_DATE_VERSION, config.getVersion()).apply();
+                } else {
+                    prefs.edit().remove(PREF_UP_TO_DATE_VERSION).apply();
+                }
+
                 if (isErrorState(state)) {
                     failedUpdateCount++;
                     clearState();